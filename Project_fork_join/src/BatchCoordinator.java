@@ -0,0 +1,400 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchCoordinator spreads a batch over several worker JVMs (BatchWorker),
+ * so a batch is no longer limited to one JVM's heap and, with workers
+ * started on other hosts, one machine's cores.
+ *
+ * The files are split into shards by estimated cost, the pixel count read
+ * from each image header without decoding it. Files are sorted largest
+ * first and packed into shards of about a quarter of a worker's share, so
+ * big images are shards of their own and small ones are grouped. Workers
+ * connect over a socket and pull one shard at a time, largest first, which
+ * balances the load without the coordinator knowing how fast each worker
+ * is.
+ *
+ * A shard is leased to the worker that pulled it. If the worker's
+ * connection drops, the shard goes back to the front of the queue. If the
+ * lease expires because the worker is slow, an idle worker is given a copy;
+ * whichever finishes first counts, and since both write the same outputs
+ * the duplicate does no harm.
+ *
+ * Every lease of a shard is an attempt. A shard whose worker reports it
+ * failed or disconnects is queued again, and after maxAttempts attempts,
+ * including leases that expired, the coordinator gives up on it and counts
+ * it in shards_failed.
+ *
+ * Workers report written images, pixels, errors and time per shard; the
+ * coordinator keeps totals and per-worker counters in its BlurMetrics.
+ *
+ * The protocol is line based: a worker sends "HELLO id", then "NEXT", and
+ * gets "SHARD id count params dstDir" and count file paths, or "DONE". It
+ * answers a shard with "RESULT id written pixels errors millis status",
+ * where status is "ok" or "failed".
+ */
+public class BatchCoordinator {
+
+    private final File mDstDir;
+    private final BlurParams mParams;
+    private final long mLeaseMillis;
+    private final int mMaxAttempts;
+    private final BlurMetrics mMetrics;
+
+    // Shards not yet leased, largest first, and those leased but not done.
+    private final Deque<Shard> mPending = new ArrayDeque<Shard>();
+    // Every shard, by id.
+    private final List<Shard> mShards;
+    private final List<Shard> mLeased = new ArrayList<Shard>();
+    private int mRemaining;
+    private int mConnected;
+    private boolean mLocalWorkersExited;
+
+    public BatchCoordinator(List<File> files, File dstDir, BlurParams params, int workers,
+                            long leaseMillis, int maxAttempts, BlurMetrics metrics) {
+        mDstDir = dstDir;
+        mParams = params;
+        mLeaseMillis = leaseMillis;
+        mMaxAttempts = maxAttempts;
+        mMetrics = metrics;
+        mShards = shard(files, workers);
+        mPending.addAll(mShards);
+        mRemaining = mPending.size();
+    }
+
+    // Packs files, largest first, into shards of about a quarter of each worker's share.
+    private List<Shard> shard(List<File> files, int workers) {
+        final List<Long> costs = new ArrayList<Long>();
+        List<Integer> order = new ArrayList<Integer>();
+        long total = 0;
+        for (int i = 0; i < files.size(); i++) {
+            long cost = Math.max(ImageCodecs.pixels(files.get(i)), 1);
+            costs.add(cost);
+            order.add(i);
+            total += cost;
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(costs.get(b), costs.get(a));
+            }
+        });
+        long target = Math.max(total / (4L * Math.max(workers, 1)), 1);
+        List<Shard> shards = new ArrayList<Shard>();
+        Shard shard = null;
+        for (int index : order) {
+            if (shard == null || shard.mPixels + costs.get(index) > target && !shard.mFiles.isEmpty()) {
+                shard = new Shard(shards.size());
+                shards.add(shard);
+            }
+            shard.mFiles.add(files.get(index));
+            shard.mPixels += costs.get(index);
+        }
+        return shards;
+    }
+
+    public BlurMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Serves workers connecting to server until every shard is done, or
+     * until localWorkersExited() has been called and no worker is connected,
+     * then closes it. Returns the number of images the workers wrote.
+     */
+    public int serve(final ServerSocket server) throws IOException, InterruptedException {
+        Thread acceptor = new Thread("coordinator-accept") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        Thread handler = new Thread("coordinator-" + socket.getPort()) {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                } catch (IOException ioe) {
+                    // The server socket was closed.
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        synchronized (this) {
+            while (mRemaining > 0 && !(mLocalWorkersExited && mConnected == 0)) {
+                wait();
+            }
+            if (mRemaining > 0) {
+                mMetrics.counter("shards_unfinished").add(mRemaining);
+                System.out.println("# Every worker has exited, " + mRemaining + " shards unfinished");
+            }
+        }
+        server.close();
+        return (int) mMetrics.counter("images_written").sum();
+    }
+
+    // Lets serve() return once no worker is connected, as no more will connect.
+    public synchronized void localWorkersExited() {
+        mLocalWorkersExited = true;
+        notifyAll();
+    }
+
+    private void handle(Socket socket) {
+        String worker = "unknown";
+        Shard current = null;
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            if (line == null || !line.startsWith("HELLO ")) {
+                return;
+            }
+            worker = line.substring("HELLO ".length());
+            connected(1);
+            mMetrics.counter("workers_connected").increment();
+            while ((line = in.readLine()) != null) {
+                if (line.equals("NEXT")) {
+                    current = lease(worker);
+                    if (current == null) {
+                        out.print("DONE\n");
+                        out.flush();
+                        return;
+                    }
+                    out.print("SHARD " + current.mId + " " + current.mFiles.size() + " " + mParams + " "
+                            + mDstDir.getAbsolutePath() + "\n");
+                    for (File file : current.mFiles) {
+                        out.print(file.getAbsolutePath() + "\n");
+                    }
+                    out.flush();
+                } else if (line.startsWith("RESULT ")) {
+                    complete(worker, line.split(" "));
+                    current = null;
+                }
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            System.out.println("# Worker " + worker + " failed: " + e);
+        } finally {
+            release(worker, current);
+            if (!worker.equals("unknown")) {
+                connected(-1);
+            }
+        }
+    }
+
+    private synchronized void connected(int delta) {
+        mConnected += delta;
+        notifyAll();
+    }
+
+    // Waits for a shard for worker; returns null once every shard is done.
+    private synchronized Shard lease(String worker) throws InterruptedException {
+        while (mRemaining > 0) {
+            long now = System.currentTimeMillis();
+            Shard shard = mPending.pollFirst();
+            if (shard == null) {
+                // Nothing new: take over the most overdue lease, or wait for one to expire.
+                long nextExpiry = Long.MAX_VALUE;
+                for (Iterator<Shard> it = mLeased.iterator(); it.hasNext(); ) {
+                    Shard leased = it.next();
+                    if (leased.mDeadline <= now && leased.mAttempts >= mMaxAttempts) {
+                        // Every attempt ran out of time.
+                        it.remove();
+                        retry(leased);
+                        continue;
+                    }
+                    if (leased.mDeadline <= now && (shard == null || leased.mDeadline < shard.mDeadline)) {
+                        shard = leased;
+                    }
+                    nextExpiry = Math.min(nextExpiry, leased.mDeadline);
+                }
+                if (shard == null) {
+                    if (mRemaining == 0) {
+                        break;
+                    }
+                    wait(nextExpiry == Long.MAX_VALUE ? 0 : Math.max(nextExpiry - now, 1));
+                    continue;
+                }
+                mMetrics.counter("shards_reassigned").increment();
+                mLeased.remove(shard);
+            }
+            shard.mWorker = worker;
+            shard.mAttempts++;
+            mMetrics.counter("shard_attempts").increment();
+            // Allow 100 ns per pixel on top of the base lease.
+            shard.mDeadline = now + mLeaseMillis + shard.mPixels / 10000;
+            mLeased.add(shard);
+            return shard;
+        }
+        return null;
+    }
+
+    /**
+     * RESULT id written pixels errors millis status. The first success for a
+     * shard counts wherever the shard is: leased to another worker, queued
+     * again after a copy disconnected, or given up on after its attempts ran
+     * out, in which case its failure is taken back.
+     */
+    private synchronized void complete(String worker, String[] result) {
+        Shard shard = mShards.get(Integer.parseInt(result[1]));
+        if (result[6].equals("failed")) {
+            mMetrics.counter("worker_" + worker + "_shards_failed").increment();
+            // Unless a copy is still running elsewhere, try again.
+            if (!shard.mDone && worker.equals(shard.mWorker) && mLeased.remove(shard)) {
+                retry(shard);
+            }
+            return;
+        }
+        if (shard.mDone && !shard.mGivenUp) {
+            // A copy of this shard already finished elsewhere.
+            mMetrics.counter("shards_duplicated").increment();
+            return;
+        }
+        if (shard.mGivenUp) {
+            shard.mGivenUp = false;
+            mMetrics.counter("shards_failed").add(-1);
+            mMetrics.counter("errors").add(-shard.mFiles.size());
+            mMetrics.counter("shards_recovered").increment();
+        } else {
+            mLeased.remove(shard);
+            mPending.remove(shard);
+            shard.mDone = true;
+            mRemaining--;
+        }
+        long written = Long.parseLong(result[2]);
+        mMetrics.counter("images_written").add(written);
+        mMetrics.counter("pixels_blurred").add(Long.parseLong(result[3]));
+        mMetrics.counter("errors").add(Long.parseLong(result[4]));
+        mMetrics.counter("worker_" + worker + "_images_written").add(written);
+        mMetrics.counter("worker_" + worker + "_shards").increment();
+        mMetrics.histogram("shard").record(Long.parseLong(result[5]) * 1000000L);
+        notifyAll();
+    }
+
+    // Puts back the shard a disconnected worker held, unless it was done or handed to another worker.
+    private synchronized void release(String worker, Shard shard) {
+        if (shard != null && !shard.mDone && worker.equals(shard.mWorker) && mLeased.remove(shard)) {
+            retry(shard);
+        }
+    }
+
+    // Queues a shard no longer leased for another attempt, or gives up on it after mMaxAttempts.
+    private void retry(Shard shard) {
+        if (shard.mAttempts >= mMaxAttempts) {
+            shard.mDone = true;
+            shard.mGivenUp = true;
+            mRemaining--;
+            mMetrics.counter("shards_failed").increment();
+            mMetrics.counter("errors").add(shard.mFiles.size());
+            System.out.println("# Giving up on shard " + shard.mId + " after " + shard.mAttempts + " attempts");
+        } else {
+            mPending.addFirst(shard);
+            mMetrics.counter("shards_requeued").increment();
+        }
+        notifyAll();
+    }
+
+    public static void main(String[] args) throws Exception {
+        File srcDir = new File(args.length > 0 ? args[0] : "..\\data\\images");
+        File dstDir = new File(args.length > 1 ? args[1] : "..\\data\\blur-images");
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        BlurParams params = BlurParams.parse(System.getProperty("forkblur.blur", BlurParams.DEFAULT.toString()));
+        long leaseMillis = Long.getLong("forkblur.lease.ms", 30000);
+        int maxAttempts = Integer.getInteger("forkblur.shard.attempts", 3);
+        int port = Integer.getInteger("forkblur.coordinator.port", 0);
+        dstDir.mkdirs();
+
+        long startTime = System.currentTimeMillis();
+        File[] listOfFiles = srcDir.listFiles();
+        List<File> files = new ArrayList<File>();
+        for (File file : listOfFiles != null ? listOfFiles : new File[0]) {
+            if (file.isFile()) {
+                files.add(file);
+            }
+        }
+        final BatchCoordinator coordinator = new BatchCoordinator(files, dstDir, params, workers, leaseMillis,
+                maxAttempts, new BlurMetrics());
+        // Only local workers can connect unless a port is given for workers on other hosts.
+        ServerSocket server = port == 0 ? new ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+                : new ServerSocket(port);
+        System.out.println("Coordinator on port " + server.getLocalPort() + ", " + files.size() + " files, "
+                + coordinator.mRemaining + " shards, " + workers + " local workers");
+
+        final List<Process> processes = new ArrayList<Process>();
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(workers, 1));
+        for (int i = 0; i < workers; i++) {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "BatchWorker",
+                    "127.0.0.1", String.valueOf(server.getLocalPort()), "w" + i, String.valueOf(parallelism))
+                    .inheritIO().start());
+        }
+        if (!processes.isEmpty()) {
+            // Stop serving if every local worker dies, rather than wait for shards no one will take.
+            Thread reaper = new Thread("coordinator-reaper") {
+                @Override
+                public void run() {
+                    try {
+                        for (Process process : processes) {
+                            process.waitFor();
+                        }
+                        coordinator.localWorkersExited();
+                    } catch (InterruptedException ie) {
+                        // The coordinator is exiting.
+                    }
+                }
+            };
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+        int written = coordinator.serve(server);
+        // A stalled worker may still hold a shard that was finished elsewhere.
+        for (Process process : processes) {
+            if (!process.waitFor(leaseMillis, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+        coordinator.getMetrics().dump(new File(dstDir, "metrics-coordinator.json"));
+
+        long endTime = System.currentTimeMillis();
+        System.out.println("=======================================================");
+        System.out.println("# Performance:");
+        System.out.println("Blured: " + written + " images.");
+        System.out.println("Time taken: " + ((endTime - startTime)/1000.0) + "s");
+        System.out.println("=======================================================");
+    }
+
+    private static class Shard {
+        final int mId;
+        final List<File> mFiles = new ArrayList<File>();
+        long mPixels;
+        String mWorker;
+        long mDeadline;
+        int mAttempts;
+        boolean mDone;
+        boolean mGivenUp;
+
+        Shard(int id) {
+            mId = id;
+        }
+    }
+}
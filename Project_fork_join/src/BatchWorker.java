@@ -0,0 +1,86 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * BatchWorker is one worker JVM of a BatchCoordinator batch. It pulls
+ * shards from the coordinator over a socket and blurs each with its own
+ * BlurEngine and BlurPipeline, until the coordinator answers DONE. A shard
+ * whose pipeline fails is reported to the coordinator as failed.
+ *
+ * Workers do not use the BlurCache: its index is per process, and workers
+ * sharing one cache directory would overwrite each other's index.
+ */
+public class BatchWorker {
+
+    public static void main(String[] args) throws Exception {
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String id = args[2];
+        int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        BlurMetrics metrics = new BlurMetrics();
+        File dstDir = null;
+        try (BlurEngine engine = new BlurEngine(parallelism);
+             Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            int workers = Math.max(1, parallelism / 4);
+            BlurPipeline pipeline = new BlurPipeline(engine, workers, workers, 4,
+                    Long.getLong("forkblur.budget.bytes", Runtime.getRuntime().maxMemory() / 2), metrics);
+            out.print("HELLO " + id + "\n");
+            while (true) {
+                out.print("NEXT\n");
+                out.flush();
+                String line = in.readLine();
+                if (line == null || line.equals("DONE")) {
+                    break;
+                }
+                // SHARD id count params dstDir
+                String[] shard = line.split(" ", 5);
+                int count = Integer.parseInt(shard[2]);
+                File[] files = new File[count];
+                for (int i = 0; i < count; i++) {
+                    files[i] = new File(in.readLine());
+                }
+                dstDir = new File(shard[4]);
+                long pixelsBefore = metrics.counter("pixels_blurred").sum();
+                long errorsBefore = errors(metrics);
+                long startTime = System.currentTimeMillis();
+                int written = 0;
+                String status = "ok";
+                try {
+                    written = pipeline.run(files, dstDir, BlurParams.parse(shard[3]));
+                } catch (ExecutionException | RuntimeException e) {
+                    // Report it and go on; the coordinator decides whether to try the shard again.
+                    status = "failed";
+                    metrics.counter("shards_failed").increment();
+                    System.out.println("# Worker " + id + ": shard " + shard[1] + " failed: " + e);
+                }
+                long millis = System.currentTimeMillis() - startTime;
+                long errors = errors(metrics);
+                out.print("RESULT " + shard[1] + " " + written + " "
+                        + (metrics.counter("pixels_blurred").sum() - pixelsBefore) + " "
+                        + (errors - errorsBefore) + " " + millis + " " + status + "\n");
+                System.out.println("# Worker " + id + ": shard " + shard[1] + ", " + written + " images in " + millis + " ms");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("# Worker " + id + " lost the coordinator: " + e);
+        }
+        if (dstDir != null) {
+            metrics.dump(new File(dstDir, "metrics-worker-" + id + ".json"));
+        }
+    }
+
+    // Images the pipeline has skipped so far, at any stage.
+    private static long errors(BlurMetrics metrics) {
+        return metrics.counter("decode_errors").sum() + metrics.counter("blur_errors").sum()
+                + metrics.counter("encode_errors").sum();
+    }
+}
@@ -0,0 +1,284 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * BlurBenchmark measures the blur code with warm-up, repeated measurement
+ * and latency percentiles, replacing the one-cold-run-per-threshold sweep
+ * that ForkBlur.main used to do. Each engine is created once per
+ * parallelism and warmed before it is measured, so neither JIT compilation
+ * nor pool start-up ends up in the numbers.
+ *
+ * Options are key=value arguments; lists are comma separated:
+ *   benchmarks   kernel, swar, forkblur, blur, pipeline (default: kernel,swar,blur)
+ *   thresholds   split thresholds in pixels, 0 = auto (default: 0,4096,16384,65536)
+ *   blurs        BlurParams specs, e.g. gauss:3       (default: box:7)
+ *   sizes        WxH synthetic images and/or corpus   (default: 1920x1080,corpus)
+ *   parallelism  pool sizes                           (default: available processors)
+ *   warmup, iterations              per measurement  (default: 5, 20)
+ *   batchWarmup, batchIterations    for pipeline     (default: 1, 3)
+ *   corpus, seed
+ *
+ * kernel runs the scalar running-sum passes on one thread with no fork/join,
+ * swar the same with SwarKernel;
+ * forkblur runs the flattened 1D ForkBlur task; blur runs BlurEngine.blur on
+ * a BufferedImage end to end; pipeline blurs the whole corpus directory
+ * through BlurPipeline (one operation is one batch), for every blur and
+ * threshold like the others, so its Mpx/s rows compare with theirs.
+ */
+public class BlurBenchmark {
+
+    private final List<String> mBenchmarks;
+    private final int[] mThresholds;
+    private final List<BlurParams> mBlurs;
+    private final List<String> mSizes;
+    private final int[] mParallelism;
+    private final int mWarmup;
+    private final int mIterations;
+    private final int mBatchWarmup;
+    private final int mBatchIterations;
+    private final File mCorpusDir;
+    private final long mSeed;
+
+    private List<BufferedImage> mCorpus;
+    private int[] mKernelTmp = new int[0];
+    private int[] mKernelDst = new int[0];
+    private long mBlackhole;
+
+    public BlurBenchmark(String[] args) {
+        mBenchmarks = Arrays.asList(option(args, "benchmarks", "kernel,swar,blur").split(","));
+        mThresholds = intList(option(args, "thresholds", "0,4096,16384,65536"));
+        mBlurs = new ArrayList<BlurParams>();
+        for (String spec : option(args, "blurs", "box:7").split(",")) {
+            mBlurs.add(BlurParams.parse(spec));
+        }
+        mSizes = Arrays.asList(option(args, "sizes", "1920x1080,corpus").split(","));
+        mParallelism = intList(option(args, "parallelism", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        mWarmup = Integer.parseInt(option(args, "warmup", "5"));
+        mIterations = Integer.parseInt(option(args, "iterations", "20"));
+        mBatchWarmup = Integer.parseInt(option(args, "batchWarmup", "1"));
+        mBatchIterations = Integer.parseInt(option(args, "batchIterations", "3"));
+        mCorpusDir = new File(option(args, "corpus", "..\\data\\images"));
+        mSeed = Long.parseLong(option(args, "seed", "42"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new BlurBenchmark(args).run();
+    }
+
+    public void run() throws Exception {
+        System.out.println(String.format("%-9s %8s %10s %9s %11s %4s %10s %10s %9s %9s %9s %9s",
+                "benchmark", "size", "blur", "threshold", "pixels", "par",
+                "ops/s", "Mpx/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (int parallelism : mParallelism) {
+            BlurEngine engine = new BlurEngine(parallelism);
+            try {
+                for (String benchmark : mBenchmarks) {
+                    if (benchmark.equals("pipeline")) {
+                        for (BlurParams params : mBlurs) {
+                            for (int threshold : mThresholds) {
+                                runPipeline(engine, parallelism, params, threshold);
+                            }
+                        }
+                        continue;
+                    }
+                    for (String size : mSizes) {
+                        List<BufferedImage> images = images(size);
+                        if (images.isEmpty()) {
+                            continue;
+                        }
+                        for (BlurParams params : mBlurs) {
+                            // The kernels have no split threshold, so they are measured once.
+                            boolean kernel = benchmark.equals("kernel") || benchmark.equals("swar");
+                            // Only the blur benchmark goes through BlurEngine.task, which runs contrast params.
+                            if (params.isContrast() && !benchmark.equals("blur")) {
+                                continue;
+                            }
+                            int[] thresholds = kernel ? new int[]{0} : mThresholds;
+                            for (int threshold : thresholds) {
+                                runImages(engine, parallelism, benchmark, size, params, threshold, images);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                engine.close();
+            }
+        }
+        // Printed so the JIT cannot drop the measured work as dead code.
+        System.out.println("# blackhole: " + mBlackhole);
+    }
+
+    private void runImages(BlurEngine engine, int parallelism, String benchmark, String size,
+                           BlurParams params, int threshold, List<BufferedImage> images) {
+        long[] samples = new long[mIterations];
+        long pixels = 0;
+        for (int i = -mWarmup; i < mIterations; i++) {
+            BufferedImage image = images.get(Math.floorMod(i, images.size()));
+            long start = System.nanoTime();
+            runOnce(engine, benchmark, image, params, threshold);
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                samples[i] = elapsed;
+                pixels += (long) image.getWidth() * image.getHeight();
+            }
+        }
+        report(benchmark, size, params, threshold, pixels / mIterations, parallelism, samples, pixels);
+    }
+
+    private void runOnce(BlurEngine engine, String benchmark, BufferedImage image, BlurParams params, int threshold) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (benchmark.equals("kernel") || benchmark.equals("swar")) {
+            if (mKernelTmp.length < w * h) {
+                mKernelTmp = new int[w * h];
+                mKernelDst = new int[w * h];
+            }
+            int[] src = RasterAccess.readPixels(image);
+            for (int pass = 0; pass < params.getPasses(); pass++) {
+                int width = params.getWidth(pass);
+                int[] in = pass == 0 ? src : mKernelDst;
+                if (benchmark.equals("kernel")) {
+                    for (int y = 0; y < h; y++) {
+                        BoxKernel.blurLine(in, mKernelTmp, y * w, 1, w, 0, w, width);
+                    }
+                    BoxKernel.blurColumns(mKernelTmp, mKernelDst, w, h, 0, w, 0, h, width);
+                } else {
+                    for (int y = 0; y < h; y++) {
+                        SwarKernel.blurLine(in, mKernelTmp, y * w, 1, w, 0, w, width);
+                    }
+                    SwarKernel.blurColumns(mKernelTmp, mKernelDst, w, h, 0, w, 0, h, width);
+                }
+            }
+            mBlackhole += mKernelDst[w * h / 2];
+        } else if (benchmark.equals("forkblur")) {
+            int[] src = RasterAccess.readPixels(image);
+            int[] dst = new int[src.length];
+            // ForkBlur is a single 1D pass; only the first width is used.
+            engine.invoke(new ForkBlur(src, 0, src.length, dst, threshold, params.getWidth(0)));
+            mBlackhole += dst[dst.length / 2];
+        } else if (benchmark.equals("blur")) {
+            // BlurEngine.blur(BufferedImage, BlurParams) with the threshold pinned.
+            PixelBufferPool bufferPool = engine.getBufferPool();
+            int[] buffer = RasterAccess.hasDirectPixels(image) ? null : bufferPool.acquire(w * h);
+            int[] src = RasterAccess.readPixels(image, buffer);
+            int[] dst = bufferPool.acquire(w * h);
+            engine.invoke(BlurEngine.task(src, dst, w, h, params, threshold, bufferPool));
+            bufferPool.release(buffer);
+            BufferedImage blurred = RasterAccess.wrapRgb(dst, w, h);
+            mBlackhole += blurred.getRGB(w / 2, h / 2);
+            engine.recycle(blurred);
+        } else {
+            throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+        }
+    }
+
+    private void runPipeline(BlurEngine engine, int parallelism, BlurParams params, int threshold) throws Exception {
+        File[] files = mCorpusDir.listFiles();
+        if (files == null || files.length == 0) {
+            System.out.println("# No corpus at " + mCorpusDir + ", skipping pipeline.");
+            return;
+        }
+        File dstDir = File.createTempFile("blur-bench", "");
+        dstDir.delete();
+        dstDir.mkdirs();
+        int decoders = Math.max(1, parallelism / 4);
+        long[] samples = new long[mBatchIterations];
+        long pixels = 0;
+        for (int i = -mBatchWarmup; i < mBatchIterations; i++) {
+            BlurPipeline pipeline = new BlurPipeline(engine, decoders, decoders, 4);
+            pipeline.setThreshold(threshold);
+            long start = System.nanoTime();
+            mBlackhole += pipeline.run(files, dstDir, params);
+            if (i >= 0) {
+                samples[i] = System.nanoTime() - start;
+                pixels += pipeline.getMetrics().counter("pixels_blurred").sum();
+            }
+        }
+        for (File file : dstDir.listFiles()) {
+            file.delete();
+        }
+        dstDir.delete();
+        report("pipeline", files.length + "files", params, threshold, pixels / mBatchIterations, parallelism, samples,
+                pixels);
+    }
+
+    private void report(String benchmark, String size, BlurParams params, int threshold, long pixelsPerOp,
+                        int parallelism, long[] samples, long totalPixels) {
+        long total = 0;
+        for (long sample : samples) {
+            total += sample;
+        }
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        double seconds = total / 1e9;
+        System.out.println(String.format("%-9s %8s %10s %9d %11d %4d %10.2f %10.1f %9.2f %9.2f %9.2f %9.2f",
+                benchmark, size, params, threshold, pixelsPerOp, parallelism,
+                samples.length / seconds, totalPixels / seconds / 1e6,
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                sorted[sorted.length - 1] / 1e6));
+    }
+
+    // Nearest-rank percentile of sorted nanosecond samples, in milliseconds.
+    static double percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(rank - 1, 0)] / 1e6;
+    }
+
+    private List<BufferedImage> images(String size) throws Exception {
+        List<BufferedImage> images = new ArrayList<BufferedImage>();
+        if (size.equals("corpus")) {
+            if (mCorpus == null) {
+                mCorpus = new ArrayList<BufferedImage>();
+                File[] files = mCorpusDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        BufferedImage image = ImageIO.read(file);
+                        if (image != null) {
+                            mCorpus.add(image);
+                        }
+                    }
+                }
+            }
+            images.addAll(mCorpus);
+        } else {
+            String[] wh = size.split("x");
+            images.add(synthetic(Integer.parseInt(wh[0]), Integer.parseInt(wh[1])));
+        }
+        return images;
+    }
+
+    // A noise image in the layout JPEG decoding produces.
+    private BufferedImage synthetic(int w, int h) {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(mSeed);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private static String option(String[] args, String key, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(key + "=")) {
+                return arg.substring(key.length() + 1);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static int[] intList(String value) {
+        String[] parts = value.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
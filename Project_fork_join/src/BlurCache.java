@@ -0,0 +1,269 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * BlurCache keeps blurred outputs on disk, keyed by the content of the
+ * source file and the blur that was applied, so that re-running a batch
+ * over mostly unchanged images only decodes, blurs and encodes the images
+ * that changed. A hit copies the stored output to the destination.
+ *
+ * The content key is a CRC32 and an Adler32 of the source bytes together
+ * with their length, computed in one pass; the key of an output adds the
+ * blur and the encoder settings it was written with. To avoid even reading unchanged
+ * sources, the key of each source path is remembered with its size and
+ * modification time, and reused while both are unchanged, so a re-run is
+ * mostly file metadata checks.
+ *
+ * The cache is bounded in bytes and evicts least recently used outputs. Its
+ * index, one line per stored output and per known source, is loaded on
+ * creation and rewritten by save(), which forgets sources that no longer
+ * exist.
+ */
+public class BlurCache {
+
+    private static final String INDEX = "index.txt";
+    // Numbers the temporary files of concurrent stores.
+    private static final AtomicLong sTempFiles = new AtomicLong(System.nanoTime());
+
+    private final File mDir;
+    private final long mMaxBytes;
+    private final boolean mLink;
+
+    // Stored outputs by key, least recently used first, and their sizes.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final Map<String, Stat> mStats = new HashMap<String, Stat>();
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * If link is true, hits are hard links to the stored output where the
+     * file system allows it; the output must then never be edited in place.
+     */
+    public BlurCache(File dir, long maxBytes, boolean link) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mLink = link;
+        dir.mkdirs();
+        load();
+    }
+
+    /**
+     * Returns the cache configured by -Dforkblur.cache (a directory, default
+     * ~/.forkblur/cache, or "off"), -Dforkblur.cache.bytes (default 1 GB)
+     * and -Dforkblur.cache.link, or null if caching is off.
+     */
+    public static BlurCache fromProperties() {
+        String dir = System.getProperty("forkblur.cache",
+                new File(System.getProperty("user.home"), ".forkblur" + File.separator + "cache").getPath());
+        if (dir.equals("off")) {
+            return null;
+        }
+        return new BlurCache(new File(dir), Long.getLong("forkblur.cache.bytes", 1L << 30),
+                Boolean.getBoolean("forkblur.cache.link"));
+    }
+
+    /**
+     * Returns the key of the output of blurring src with params and writing
+     * it as format with the current ImageCodecs settings.
+     */
+    public String key(File src, BlurParams params, String format) throws IOException {
+        String path = src.getAbsolutePath();
+        long size = src.length();
+        long modified = src.lastModified();
+        Stat stat;
+        synchronized (this) {
+            stat = mStats.get(path);
+        }
+        if (stat == null || stat.mSize != size || stat.mModified != modified) {
+            stat = new Stat(size, modified, contentHash(src));
+            synchronized (this) {
+                mStats.put(path, stat);
+            }
+        }
+        // BlurParams specs contain ':', which is not allowed in Windows file names.
+        String settings = ImageCodecs.settingsTag(format);
+        return stat.mHash + "-" + params.toString().replace(':', '_') + (settings.isEmpty() ? "" : "-" + settings)
+                + "." + format;
+    }
+
+    /**
+     * Puts the stored output for key at dst and returns true, or returns
+     * false if there is none.
+     */
+    public boolean restore(String key, File dst) throws IOException {
+        File stored = new File(mDir, key);
+        synchronized (this) {
+            if (mEntries.get(key) == null) {
+                mMisses++;
+                return false;
+            }
+            if (!stored.isFile()) {
+                mBytes -= mEntries.remove(key);
+                mMisses++;
+                return false;
+            }
+            mHits++;
+        }
+        Files.deleteIfExists(dst.toPath());
+        if (mLink) {
+            try {
+                Files.createLink(dst.toPath(), stored.toPath());
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                // Different file systems, or no hard links here: copy instead.
+            }
+        }
+        Files.copy(stored.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Stores a copy of output, the freshly written result for key, unless an
+     * output for key is already stored. Sources with identical bytes share a
+     * key, so several encoders may store the same key at once; each copies to
+     * a temporary file of its own.
+     */
+    public void store(String key, File output) throws IOException {
+        synchronized (this) {
+            if (mEntries.containsKey(key)) {
+                return;
+            }
+        }
+        File stored = new File(mDir, key);
+        File tmp = new File(mDir, key + "." + sTempFiles.incrementAndGet() + ".tmp");
+        try {
+            // Without REPLACE_EXISTING, the copy creates tmp and fails if it exists.
+            Files.copy(output.toPath(), tmp.toPath());
+            Files.move(tmp.toPath(), stored.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        long bytes = stored.length();
+        synchronized (this) {
+            Long previous = mEntries.put(key, bytes);
+            mBytes += bytes - (previous != null ? previous : 0);
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(mDir, entry.getKey()).delete();
+            mBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    // Rewrites the index; entries are listed least recently used first, and sources that are gone are dropped.
+    public synchronized void save() throws IOException {
+        for (Iterator<String> paths = mStats.keySet().iterator(); paths.hasNext(); ) {
+            if (!new File(paths.next()).isFile()) {
+                paths.remove();
+            }
+        }
+        File tmp = new File(mDir, INDEX + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write("entry\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+            for (Map.Entry<String, Stat> entry : mStats.entrySet()) {
+                Stat stat = entry.getValue();
+                writer.write("stat\t" + entry.getKey() + "\t" + stat.mSize + "\t" + stat.mModified + "\t" + stat.mHash + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), new File(mDir, INDEX).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void load() {
+        File index = new File(mDir, INDEX);
+        if (!index.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields[0].equals("entry") && fields.length == 3) {
+                    long bytes = Long.parseLong(fields[2]);
+                    mEntries.put(fields[1], bytes);
+                    mBytes += bytes;
+                } else if (fields[0].equals("stat") && fields.length == 5) {
+                    mStats.put(fields[1], new Stat(Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("# Ignoring unreadable cache index " + index + ": " + e);
+            mEntries.clear();
+            mStats.clear();
+            mBytes = 0;
+        }
+    }
+
+    static String contentHash(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        long length = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                length += read;
+                buffer.flip();
+                crc.update(buffer.duplicate());
+                adler.update(buffer);
+                buffer.clear();
+            }
+        }
+        return String.format("%08x%08x-%x", crc.getValue(), adler.getValue(), length);
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BlurCache[" + mDir + ", entries=" + mEntries.size() + ", bytes=" + mBytes
+                + ", hits=" + mHits + ", misses=" + mMisses + "]";
+    }
+
+    private static class Stat {
+        final long mSize;
+        final long mModified;
+        final String mHash;
+
+        Stat(long size, long modified, String hash) {
+            mSize = size;
+            mModified = modified;
+            mHash = hash;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * BlurDaemon keeps one warm BlurEngine running and blurs files as they land
+ * in a watched directory, instead of a batch main listing the directory
+ * once per run and paying JVM start-up and JIT warm-up every time.
+ *
+ * New and modified files are reported by a WatchService. A file is only
+ * handed to the BlurPipeline once its size and modification time have not
+ * changed for the debounce interval, so files still being copied in are not
+ * read half-written. Names ending in .part or .tmp, and hidden files, are
+ * ignored until they are renamed.
+ *
+ * Every blurred file is appended to a journal in the output directory with
+ * the size and modification time it had. On start the journal is loaded and
+ * the directory scanned, so a restarted daemon blurs only what arrived or
+ * changed while it was down.
+ *
+ * A file whose blur fails stays pending and is tried again after a backoff
+ * that doubles each time, up to -Dforkblur.daemon.attempts attempts (default
+ * 5). After that it is left alone until it changes. A batch that fails as a
+ * whole counts as a failed attempt for each of its files, so one bad image
+ * does not stop the daemon.
+ */
+public class BlurDaemon {
+
+    private static final String JOURNAL = "processed.journal";
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final File mSrcDir;
+    private final File mDstDir;
+    private final BlurParams mParams;
+    private final BlurPipeline mPipeline;
+    private final BlurMetrics mMetrics;
+    private final long mDebounceMillis;
+    private final File mJournalFile;
+    private final int mMaxAttempts = Integer.getInteger("forkblur.daemon.attempts", 5);
+
+    // Journal: file name to the "size/mtime" it was blurred at.
+    private final Map<String, String> mProcessed = new HashMap<String, String>();
+    // Files seen but not yet stable, with when they were first seen and last changed.
+    private final Map<String, Pending> mPending = new LinkedHashMap<String, Pending>();
+    // Files given up on, to the "size/mtime" they failed at.
+    private final Map<String, String> mFailed = new HashMap<String, String>();
+
+    public BlurDaemon(File srcDir, File dstDir, BlurParams params, BlurPipeline pipeline, long debounceMillis) {
+        mSrcDir = srcDir;
+        mDstDir = dstDir;
+        mParams = params;
+        mPipeline = pipeline;
+        mMetrics = pipeline.getMetrics();
+        mDebounceMillis = debounceMillis;
+        mJournalFile = new File(dstDir, JOURNAL);
+    }
+
+    /**
+     * Watches the source directory and blurs files as they become stable,
+     * until the thread is interrupted or the watch service is closed.
+     */
+    public void run(WatchService watcher) throws IOException, InterruptedException {
+        mDstDir.mkdirs();
+        loadJournal();
+        mSrcDir.toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        // Pick up whatever arrived while the daemon was not running.
+        scan();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.poll(mDebounceMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            mMetrics.counter("watch_overflows").increment();
+                            scan();
+                        } else {
+                            seen(((Path) event.context()).toString());
+                        }
+                    }
+                    key.reset();
+                }
+                blurStable();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed on shutdown.
+        }
+    }
+
+    private void scan() {
+        String[] names = mSrcDir.list();
+        if (names != null) {
+            for (String name : names) {
+                seen(name);
+            }
+        }
+    }
+
+    private void seen(String name) {
+        if (name.startsWith(".") || name.endsWith(".part") || name.endsWith(".tmp")) {
+            return;
+        }
+        File file = new File(mSrcDir, name);
+        if (!file.isFile()) {
+            mFailed.remove(name);
+            return;
+        }
+        if (stamp(file).equals(mProcessed.get(name)) || stamp(file).equals(mFailed.get(name))) {
+            return;
+        }
+        Pending pending = mPending.get(name);
+        if (pending == null) {
+            mPending.put(name, new Pending(stamp(file)));
+        } else {
+            pending.update(stamp(file));
+        }
+    }
+
+    // Blurs the pending files that have not changed for the debounce interval and are not backing off.
+    private void blurStable() throws IOException, InterruptedException {
+        long now = System.currentTimeMillis();
+        List<File> ready = new ArrayList<File>();
+        for (Iterator<Map.Entry<String, Pending>> it = mPending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Pending> entry = it.next();
+            File file = new File(mSrcDir, entry.getKey());
+            Pending pending = entry.getValue();
+            if (!file.isFile()) {
+                it.remove();
+            } else if (pending.update(stamp(file)) && now - pending.mChangedAt >= mDebounceMillis
+                    && now >= pending.mRetryAt) {
+                ready.add(file);
+            }
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+        Set<String> written;
+        try {
+            written = mPipeline.blur(ready.toArray(new File[0]), mDstDir, mParams);
+        } catch (ExecutionException | RuntimeException e) {
+            System.out.println("# Blurring " + ready.size() + " files failed: " + e);
+            written = Collections.emptySet();
+        }
+        List<String> done = new ArrayList<String>();
+        for (File file : ready) {
+            Pending pending = mPending.get(file.getName());
+            if (written.contains(file.getName())) {
+                mMetrics.histogram("arrival_to_output").record(
+                        TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - pending.mFirstSeenAt));
+                mProcessed.put(file.getName(), pending.mStamp);
+                mPending.remove(file.getName());
+                done.add(file.getName() + "\t" + pending.mStamp + "\n");
+            } else {
+                failed(file.getName(), pending);
+            }
+        }
+        appendJournal(done);
+    }
+
+    // Schedules another attempt at a file whose blur failed, or gives up on it.
+    private void failed(String name, Pending pending) {
+        mMetrics.counter("daemon_failures").increment();
+        pending.mAttempts++;
+        if (pending.mAttempts >= mMaxAttempts) {
+            mMetrics.counter("daemon_gave_up").increment();
+            System.out.println("# Giving up on " + name + " after " + pending.mAttempts + " attempts");
+            mFailed.put(name, pending.mStamp);
+            mPending.remove(name);
+            return;
+        }
+        long backoff = Math.min(mDebounceMillis << Math.min(pending.mAttempts, 20), MAX_BACKOFF_MILLIS);
+        pending.mRetryAt = System.currentTimeMillis() + backoff;
+        mMetrics.counter("daemon_retries").increment();
+    }
+
+    private static String stamp(File file) {
+        return file.length() + "/" + file.lastModified();
+    }
+
+    private void loadJournal() throws IOException {
+        if (!mJournalFile.isFile()) {
+            return;
+        }
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(mJournalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 2) {
+                    mProcessed.put(fields[0], fields[1]);
+                    lines++;
+                }
+            }
+        }
+        // Later lines for a file replace earlier ones; drop the replaced ones.
+        if (lines > mProcessed.size()) {
+            File tmp = new File(mDstDir, JOURNAL + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> entry : mProcessed.entrySet()) {
+                    writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+                }
+            }
+            Files.move(tmp.toPath(), mJournalFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void appendJournal(List<String> lines) throws IOException {
+        if (lines.isEmpty()) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line);
+        }
+        Files.write(mJournalFile.toPath(), text.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+    }
+
+    public static void main(String[] args) throws Exception {
+        File srcDir = new File(args.length > 0 ? args[0] : "..\\data\\images");
+        File dstDir = new File(args.length > 1 ? args[1] : "..\\data\\blur-images");
+        BlurParams params = BlurParams.parse(System.getProperty("forkblur.blur", BlurParams.DEFAULT.toString()));
+        long debounceMillis = Long.getLong("forkblur.debounce.ms", 500);
+        int processors = Runtime.getRuntime().availableProcessors();
+        BlurMetrics metrics = new BlurMetrics();
+        String metricsFile = System.getProperty("forkblur.metrics", new File(dstDir, "metrics.json").getPath());
+        metrics.startPeriodicDump(new File(metricsFile), 10, TimeUnit.SECONDS);
+        BlurCache cache = BlurCache.fromProperties();
+        BlurPipeline pipeline = new BlurPipeline(BlurEngine.getDefault(), Math.max(1, processors / 4),
+                Math.max(1, processors / 4), 4, Long.getLong("forkblur.budget.bytes",
+                Runtime.getRuntime().maxMemory() / 2), metrics, cache);
+
+        final WatchService watcher = FileSystems.getDefault().newWatchService();
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    watcher.close();
+                    mainThread.join();
+                } catch (IOException | InterruptedException e) {
+                    // Exiting anyway.
+                }
+            }
+        });
+        System.out.println("Watching " + srcDir + ", blurring with " + params + " into " + dstDir);
+        try {
+            new BlurDaemon(srcDir, dstDir, params, pipeline, debounceMillis).run(watcher);
+        } finally {
+            metrics.stopPeriodicDump();
+            metrics.dump(new File(metricsFile));
+            BlurEngine.getDefault().close();
+        }
+    }
+
+    private static class Pending {
+        final long mFirstSeenAt = System.currentTimeMillis();
+        long mChangedAt = mFirstSeenAt;
+        String mStamp;
+        // Failed attempts at the current stamp, and when the next one may start.
+        int mAttempts;
+        long mRetryAt;
+
+        Pending(String stamp) {
+            mStamp = stamp;
+        }
+
+        // Records the file's current stamp; returns whether it was unchanged.
+        boolean update(String stamp) {
+            if (stamp.equals(mStamp)) {
+                return true;
+            }
+            mStamp = stamp;
+            mChangedAt = System.currentTimeMillis();
+            // A changed file gets a fresh set of attempts.
+            mAttempts = 0;
+            mRetryAt = 0;
+            return false;
+        }
+    }
+}
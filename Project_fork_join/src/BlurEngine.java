@@ -0,0 +1,187 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlurEngine owns one long-lived ForkJoinPool and runs blur tasks on it.
+ * Creating a pool per image pays thread start-up and warm-up on every call
+ * and leaks the workers; an engine is created once, reused for every image
+ * of a batch and closed when the batch is done.
+ *
+ * The engine also owns a PixelBufferPool. The pixel arrays behind blurred
+ * images come from it, and recycle() gives them back once the caller has
+ * written the image out, so a steady batch does not allocate pixel arrays.
+ *
+ * filter() runs a FilterChain the same way, several filters in one call.
+ */
+public class BlurEngine implements AutoCloseable {
+
+    private static BlurEngine sDefault;
+
+    private final ForkJoinPool mPool;
+    private final PixelBufferPool mBufferPool;
+
+    public BlurEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlurEngine(int parallelism) {
+        this(parallelism, namedWorkerFactory("blur-worker-"), false);
+    }
+
+    /**
+     * Creates an engine whose pool has the given parallelism and worker
+     * factory. asyncMode selects FIFO scheduling of forked tasks that are never
+     * joined; the blur tasks always join, so the default LIFO mode suits them.
+     */
+    public BlurEngine(int parallelism, ForkJoinPool.ForkJoinWorkerThreadFactory factory, boolean asyncMode) {
+        this(parallelism, factory, asyncMode, new PixelBufferPool(Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    public BlurEngine(int parallelism, ForkJoinPool.ForkJoinWorkerThreadFactory factory, boolean asyncMode,
+                      PixelBufferPool bufferPool) {
+        mPool = new ForkJoinPool(parallelism, factory, null, asyncMode);
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * Returns the engine shared by the static blur() entry points, creating it
+     * on first use or after the previous one was closed.
+     */
+    public static synchronized BlurEngine getDefault() {
+        if (sDefault == null || sDefault.isShutdown()) {
+            sDefault = new BlurEngine();
+        }
+        return sDefault;
+    }
+
+    public ForkJoinPool getPool() {
+        return mPool;
+    }
+
+    public PixelBufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    // Run a task on the engine's pool and wait for its result.
+    public <T> T invoke(ForkJoinTask<T> task) {
+        return mPool.invoke(task);
+    }
+
+    /**
+     * Blurs width x height pixels of src into an array taken from the buffer
+     * pool. The result may be longer than width * height; pass it to
+     * getBufferPool().release() when done with it.
+     */
+    public int[] blur(int[] src, int width, int height) {
+        return blur(src, width, height, BlurParams.DEFAULT);
+    }
+
+    public int[] blur(int[] src, int width, int height, BlurParams params) {
+        int[] dst = mBufferPool.acquire(width * height);
+        mPool.invoke(task(src, dst, width, height, params, 0, mBufferPool));
+        return dst;
+    }
+
+    public int[] filter(int[] src, int width, int height, FilterChain chain) {
+        return filter(src, width, height, chain, 0);
+    }
+
+    // The same with the split threshold pinned; 0 lets SplitPolicy choose one.
+    int[] filter(int[] src, int width, int height, FilterChain chain, int threshold) {
+        int[] dst = mBufferPool.acquire(width * height);
+        // If this throws, tasks of the chain may still be writing dst, so it is not given back.
+        mPool.invoke(chain.task(src, dst, width, height, threshold, mBufferPool, Cancellation.NONE));
+        return dst;
+    }
+
+    /**
+     * The task that applies params: a ForkBlur2D, a PyramidBlur for
+     * approximate params, ForkBlur passes for flattened params, or a
+     * ContrastFilter2D for contrast params.
+     */
+    static ForkJoinTask<?> task(int[] src, int[] dst, int width, int height, BlurParams params,
+                                int threshold, PixelBufferPool bufferPool) {
+        return task(src, dst, width, height, params, threshold, bufferPool, null, Cancellation.NONE);
+    }
+
+    // The same, applying FilterChain ops, if not null, to the result and stopping once cancellation is set.
+    static ForkJoinTask<?> task(int[] src, int[] dst, int width, int height, BlurParams params, int threshold,
+                                PixelBufferPool bufferPool, PixelOp[] ops, Cancellation cancellation) {
+        if (params.isContrast()) {
+            return new ContrastFilter2D(src, dst, width, height, params.getContrastRadius(), threshold, ops,
+                    cancellation);
+        }
+        if (params.isFlattened()) {
+            return ForkBlur.task(src, dst, width, height, params, threshold, bufferPool, ops, cancellation);
+        }
+        if (params.getTolerance() > 0) {
+            return new PyramidBlur(src, dst, width, height, params, threshold, bufferPool, ops, cancellation);
+        }
+        return new ForkBlur2D(src, dst, width, height, params, threshold, bufferPool, ops, cancellation);
+    }
+
+    /**
+     * Returns a blurred TYPE_INT_RGB copy of srcImage. Its pixels live in a
+     * pooled array; hand the image to recycle() once it has been written.
+     */
+    public BufferedImage blur(BufferedImage srcImage) {
+        return blur(srcImage, BlurParams.DEFAULT);
+    }
+
+    public BufferedImage blur(BufferedImage srcImage, BlurParams params) {
+        return filter(srcImage, FilterChain.of(params));
+    }
+
+    // Returns a TYPE_INT_RGB copy of srcImage with chain applied, to be recycled like blur().
+    public BufferedImage filter(BufferedImage srcImage, FilterChain chain) {
+        return filter(srcImage, chain, 0);
+    }
+
+    BufferedImage filter(BufferedImage srcImage, FilterChain chain, int threshold) {
+        int w = srcImage.getWidth();
+        int h = srcImage.getHeight();
+        int[] buffer = RasterAccess.hasDirectPixels(srcImage) ? null : mBufferPool.acquire(w * h);
+        int[] src = RasterAccess.readPixels(srcImage, buffer);
+        int[] dst;
+        try {
+            dst = filter(src, w, h, chain, threshold);
+        } finally {
+            // The tasks only read src, so its copy can go back even after a failure.
+            mBufferPool.release(buffer);
+        }
+        return RasterAccess.wrapRgb(dst, w, h);
+    }
+
+    // Return the pixels of an image made by blur(BufferedImage) to the pool.
+    public void recycle(BufferedImage blurredImage) {
+        mBufferPool.release(RasterAccess.wrappedPixels(blurredImage));
+    }
+
+    public boolean isShutdown() {
+        return mPool.isShutdown();
+    }
+
+    // Stop accepting work; tasks already running are allowed to finish.
+    @Override
+    public void close() {
+        mPool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mPool.awaitTermination(timeout, unit);
+    }
+
+    static ForkJoinPool.ForkJoinWorkerThreadFactory namedWorkerFactory(final String prefix) {
+        return new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(prefix + thread.getPoolIndex());
+                return thread;
+            }
+        };
+    }
+}
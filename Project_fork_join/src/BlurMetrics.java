@@ -0,0 +1,299 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * BlurMetrics collects latency histograms, counters, gauges and ForkJoinPool
+ * statistics for a batch and writes them as JSON or Prometheus text, at the
+ * end of a run or periodically while it goes on. Recording is lock-free and
+ * allocation-free (a few atomic adds), so it can stay on in production, unlike
+ * the println of every step it replaces.
+ *
+ * Counters also get a per-second rate over the life of the metrics object.
+ */
+public class BlurMetrics {
+
+    private final long mStartNanos = System.nanoTime();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, LongAdder> mCounters = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentMap<String, LongSupplier> mGauges = new ConcurrentHashMap<String, LongSupplier>();
+    private final ConcurrentMap<String, ForkJoinPool> mPools = new ConcurrentHashMap<String, ForkJoinPool>();
+    private ScheduledExecutorService mDumper;
+
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            mHistograms.putIfAbsent(name, new Histogram());
+            histogram = mHistograms.get(name);
+        }
+        return histogram;
+    }
+
+    public LongAdder counter(String name) {
+        LongAdder counter = mCounters.get(name);
+        if (counter == null) {
+            mCounters.putIfAbsent(name, new LongAdder());
+            counter = mCounters.get(name);
+        }
+        return counter;
+    }
+
+    // A value read when the metrics are written, e.g. a queue depth.
+    public void gauge(String name, LongSupplier value) {
+        mGauges.put(name, value);
+    }
+
+    // Report steal count, queued tasks and thread counts of pool.
+    public void pool(String name, ForkJoinPool pool) {
+        mPools.put(name, pool);
+    }
+
+    /**
+     * Writes the metrics to file, as Prometheus text if its name ends in
+     * .prom and as JSON otherwise. The file is replaced atomically so a
+     * reader never sees half a dump.
+     */
+    public void dump(File file) throws IOException {
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8)) {
+            if (file.getName().endsWith(".prom")) {
+                writePrometheus(writer);
+            } else {
+                writeJson(writer);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Dump to file every period until stopPeriodicDump(), on a daemon thread.
+    public synchronized void startPeriodicDump(final File file, long period, TimeUnit unit) {
+        stopPeriodicDump();
+        mDumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mDumper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dump(file);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void stopPeriodicDump() {
+        if (mDumper != null) {
+            mDumper.shutdownNow();
+            mDumper = null;
+        }
+    }
+
+    public void writeJson(Writer out) throws IOException {
+        double elapsed = elapsedSeconds();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"elapsed_seconds\": ").append(elapsed);
+        sb.append(",\n  \"histograms\": {");
+        String sep = "\n";
+        for (Map.Entry<String, Histogram> entry : sorted(mHistograms).entrySet()) {
+            Histogram h = entry.getValue();
+            sb.append(sep).append("    \"").append(entry.getKey()).append("\": {\"count\": ").append(h.getCount())
+                    .append(", \"mean_ms\": ").append(h.getMean() / 1e6)
+                    .append(", \"p50_ms\": ").append(h.getPercentile(0.50) / 1e6)
+                    .append(", \"p90_ms\": ").append(h.getPercentile(0.90) / 1e6)
+                    .append(", \"p99_ms\": ").append(h.getPercentile(0.99) / 1e6)
+                    .append(", \"max_ms\": ").append(h.getMax() / 1e6).append("}");
+            sep = ",\n";
+        }
+        sb.append("\n  },\n  \"counters\": {");
+        sep = "\n";
+        for (Map.Entry<String, LongAdder> entry : sorted(mCounters).entrySet()) {
+            long value = entry.getValue().sum();
+            sb.append(sep).append("    \"").append(entry.getKey()).append("\": {\"total\": ").append(value)
+                    .append(", \"per_second\": ").append(elapsed > 0 ? value / elapsed : 0).append("}");
+            sep = ",\n";
+        }
+        sb.append("\n  },\n  \"gauges\": {");
+        sep = "\n";
+        for (Map.Entry<String, LongSupplier> entry : sorted(mGauges).entrySet()) {
+            sb.append(sep).append("    \"").append(entry.getKey()).append("\": ").append(entry.getValue().getAsLong());
+            sep = ",\n";
+        }
+        sb.append("\n  },\n  \"pools\": {");
+        sep = "\n";
+        for (Map.Entry<String, ForkJoinPool> entry : sorted(mPools).entrySet()) {
+            ForkJoinPool pool = entry.getValue();
+            sb.append(sep).append("    \"").append(entry.getKey()).append("\": {")
+                    .append("\"parallelism\": ").append(pool.getParallelism())
+                    .append(", \"pool_size\": ").append(pool.getPoolSize())
+                    .append(", \"active_threads\": ").append(pool.getActiveThreadCount())
+                    .append(", \"running_threads\": ").append(pool.getRunningThreadCount())
+                    .append(", \"queued_tasks\": ").append(pool.getQueuedTaskCount())
+                    .append(", \"queued_submissions\": ").append(pool.getQueuedSubmissionCount())
+                    .append(", \"steal_count\": ").append(pool.getStealCount()).append("}");
+            sep = ",\n";
+        }
+        sb.append("\n  }\n}\n");
+        out.write(sb.toString());
+    }
+
+    public void writePrometheus(Writer out) throws IOException {
+        double elapsed = elapsedSeconds();
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : sorted(mHistograms).entrySet()) {
+            String name = "forkblur_" + entry.getKey() + "_seconds";
+            Histogram h = entry.getValue();
+            sb.append("# TYPE ").append(name).append(" summary\n");
+            for (double q : new double[]{0.5, 0.9, 0.99}) {
+                sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                        .append(h.getPercentile(q) / 1e9).append('\n');
+            }
+            sb.append(name).append("_sum ").append(h.getSum() / 1e9).append('\n');
+            sb.append(name).append("_count ").append(h.getCount()).append('\n');
+        }
+        for (Map.Entry<String, LongAdder> entry : sorted(mCounters).entrySet()) {
+            String name = "forkblur_" + entry.getKey();
+            long value = entry.getValue().sum();
+            sb.append("# TYPE ").append(name).append("_total counter\n");
+            sb.append(name).append("_total ").append(value).append('\n');
+            sb.append("# TYPE ").append(name).append("_per_second gauge\n");
+            sb.append(name).append("_per_second ").append(elapsed > 0 ? value / elapsed : 0).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> entry : sorted(mGauges).entrySet()) {
+            String name = "forkblur_" + entry.getKey();
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(entry.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, ForkJoinPool> entry : sorted(mPools).entrySet()) {
+            ForkJoinPool pool = entry.getValue();
+            String label = "{pool=\"" + entry.getKey() + "\"}";
+            sb.append("forkblur_pool_parallelism").append(label).append(' ').append(pool.getParallelism()).append('\n');
+            sb.append("forkblur_pool_size").append(label).append(' ').append(pool.getPoolSize()).append('\n');
+            sb.append("forkblur_pool_active_threads").append(label).append(' ').append(pool.getActiveThreadCount()).append('\n');
+            sb.append("forkblur_pool_running_threads").append(label).append(' ').append(pool.getRunningThreadCount()).append('\n');
+            sb.append("forkblur_pool_queued_tasks").append(label).append(' ').append(pool.getQueuedTaskCount()).append('\n');
+            sb.append("forkblur_pool_queued_submissions").append(label).append(' ').append(pool.getQueuedSubmissionCount()).append('\n');
+            sb.append("forkblur_pool_steals_total").append(label).append(' ').append(pool.getStealCount()).append('\n');
+        }
+        out.write(sb.toString());
+    }
+
+    public double elapsedSeconds() {
+        return (System.nanoTime() - mStartNanos) / 1e9;
+    }
+
+    private static <V> TreeMap<String, V> sorted(Map<String, V> map) {
+        return new TreeMap<String, V>(map);
+    }
+
+    /**
+     * Histogram of nanosecond durations in log-linear buckets, as in HdrHistogram:
+     * each power of two is split into 16 sub-buckets, so a recorded value is
+     * known to within 1/16 (about 6%) at any magnitude.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+        private final LongAdder mSum = new LongAdder();
+        private final AtomicLong mMax = new AtomicLong();
+
+        public void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            mCounts.incrementAndGet(bucket(value));
+            mSum.add(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // Retry until our value is stored or a larger one is.
+            }
+        }
+
+        // Record the time since startNanos, a System.nanoTime() reading.
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        // Middle of the range of values that fall into bucket.
+        static long bucketValue(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int shift = bucket / SUB_COUNT - 1;
+            long lower = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+            return lower + ((1L << shift) >> 1);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < mCounts.length(); i++) {
+                count += mCounts.get(i);
+            }
+            return count;
+        }
+
+        public long getSum() {
+            return mSum.sum();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        // Nearest-rank percentile, in nanoseconds; 0 when nothing was recorded.
+        public long getPercentile(double p) {
+            long[] counts = new long[mCounts.length()];
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = mCounts.get(i);
+                count += counts[i];
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(bucketValue(i), getMax());
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.util.Arrays;
+
+/**
+ * BlurParams describes one blur request as a list of box passes, each a
+ * horizontal plus a vertical running-sum pass of an odd width. Odd, so that
+ * the window is centred on the output pixel with (width - 1) / 2 pixels on
+ * each side.
+ *
+ * box(radius) is a single pass of width 2 * radius + 1. gaussian(sigma)
+ * approximates a Gaussian with three box passes whose widths are chosen so
+ * the combined variance equals sigma^2 (W. Jarosz, "Fast Image
+ * Convolutions"); by the central limit theorem three passes are already
+ * close to the real curve. Each pass costs the same whatever its width, so a
+ * blur costs O(pixels x passes) at any radius.
+ *
+ * contrast(radius) selects the ContrastFilter2D local contrast map over a
+ * (2 * radius + 1)^2 window instead of a blur; it has no box passes.
+ *
+ * approximate(tolerance) lets a blur run on a PyramidBlur, at a reduced
+ * resolution, as long as the result stays within tolerance of the exact
+ * blur (mean absolute error in 8-bit levels).
+ *
+ * Params are written and parsed as "box:7", "gauss:3.5", "gauss:3.5x4" or
+ * "contrast:3", with "~tolerance" appended for an approximate blur, as in
+ * "gauss:24~1".
+ *
+ * flattened() runs the same passes horizontally only, over the pixel array
+ * as one long row, so that windows run on from the end of a row into the
+ * next. That is the blur ForkBlur has always computed, and what the batch
+ * classes produce unless a 2D blur is asked for. Flattened params are
+ * written with a "flat:" prefix, as in "flat:box:7".
+ */
+public final class BlurParams {
+
+    // The 15-pixel box the blur classes have always used.
+    public static final BlurParams DEFAULT = box(7);
+
+    private final int[] mWidths;
+    private final int mContrastRadius;
+    private final double mTolerance;
+    private final boolean mFlattened;
+    private final String mSpec;
+
+    private BlurParams(int[] widths, String spec) {
+        this(widths, 0, 0, false, spec);
+    }
+
+    private BlurParams(int[] widths, int contrastRadius, double tolerance, boolean flattened, String spec) {
+        mWidths = widths;
+        mContrastRadius = contrastRadius;
+        mTolerance = tolerance;
+        mFlattened = flattened;
+        mSpec = spec;
+    }
+
+    public static BlurParams box(int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("radius must be >= 0: " + radius);
+        }
+        return new BlurParams(new int[]{2 * radius + 1}, "box:" + radius);
+    }
+
+    public static BlurParams gaussian(double sigma) {
+        return gaussian(sigma, 3);
+    }
+
+    public static BlurParams gaussian(double sigma, int passes) {
+        if (!(sigma > 0) || passes < 1) {
+            throw new IllegalArgumentException("need sigma > 0 and passes >= 1: " + sigma + ", " + passes);
+        }
+        double variance = 12 * sigma * sigma;
+        int lower = (int) Math.floor(Math.sqrt(variance / passes + 1));
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        // Use the lower width for the first m passes and the upper one after.
+        int m = (int) Math.round((variance - passes * lower * lower - 4 * passes * lower - 3 * passes)
+                / (-4.0 * lower - 4));
+        int[] widths = new int[passes];
+        for (int i = 0; i < passes; i++) {
+            widths[i] = i < m ? lower : upper;
+        }
+        return new BlurParams(widths, "gauss:" + sigma + (passes == 3 ? "" : "x" + passes));
+    }
+
+    public static BlurParams contrast(int radius) {
+        if (radius < 1) {
+            throw new IllegalArgumentException("radius must be >= 1: " + radius);
+        }
+        return new BlurParams(new int[0], radius, 0, false, "contrast:" + radius);
+    }
+
+    // The same blur, allowed to deviate from the exact one by tolerance levels on average.
+    public BlurParams approximate(double tolerance) {
+        if (isContrast() || mFlattened || !(tolerance >= 0)) {
+            throw new IllegalArgumentException("Only 2D blurs can be approximated, with tolerance >= 0: "
+                    + this + "~" + tolerance);
+        }
+        BlurParams exact = exact();
+        return tolerance == 0 ? exact : new BlurParams(mWidths, 0, tolerance, false, exact.mSpec + "~" + tolerance);
+    }
+
+    // The same filter without approximation.
+    BlurParams exact() {
+        return mTolerance == 0 ? this : new BlurParams(mWidths, 0, 0, false, mSpec.substring(0, mSpec.indexOf('~')));
+    }
+
+    // The same passes, run only horizontally over the flattened pixel array.
+    public BlurParams flattened() {
+        if (isContrast() || mTolerance > 0) {
+            throw new IllegalArgumentException("Only exact blurs can be flattened: " + this);
+        }
+        return mFlattened ? this : new BlurParams(mWidths, 0, 0, true, "flat:" + mSpec);
+    }
+
+    /**
+     * The passes that, at 1/factor of the resolution and together with the
+     * PyramidBlur's block average and bilinear upsampling, spread a pixel
+     * as far as these passes do: the variances of the resampling are taken
+     * off and the rest is shared out in proportion to the passes' own.
+     */
+    BlurParams reduced(int factor) {
+        double variance = getSigma() * getSigma();
+        double resampling = (factor * factor - 1) / 12.0 + factor * factor / 6.0;
+        double reduced = Math.max(variance - resampling, 0) / ((double) factor * factor);
+        int[] widths = new int[mWidths.length];
+        for (int i = 0; i < widths.length; i++) {
+            double share = variance > 0 ? (mWidths[i] * mWidths[i] - 1) / 12.0 / variance : 0;
+            int radius = (int) Math.round((Math.sqrt(12 * reduced * share + 1) - 1) / 2);
+            widths[i] = 2 * radius + 1;
+        }
+        return new BlurParams(widths, exact().mSpec + "/" + factor);
+    }
+
+    public static BlurParams parse(String spec) {
+        int tilde = spec.indexOf('~');
+        if (tilde >= 0) {
+            return parse(spec.substring(0, tilde)).approximate(Double.parseDouble(spec.substring(tilde + 1)));
+        }
+        String[] parts = spec.trim().split(":", 2);
+        if (parts.length == 2 && parts[0].equals("flat")) {
+            return parse(parts[1]).flattened();
+        }
+        if (parts.length == 2 && parts[0].equals("box")) {
+            return box(Integer.parseInt(parts[1]));
+        }
+        if (parts.length == 2 && parts[0].equals("gauss")) {
+            String[] sigmaPasses = parts[1].split("x", 2);
+            int passes = sigmaPasses.length == 2 ? Integer.parseInt(sigmaPasses[1]) : 3;
+            return gaussian(Double.parseDouble(sigmaPasses[0]), passes);
+        }
+        if (parts.length == 2 && parts[0].equals("contrast")) {
+            return contrast(Integer.parseInt(parts[1]));
+        }
+        throw new IllegalArgumentException("Expected box:<radius>, gauss:<sigma>[x<passes>] or contrast:<radius>, "
+                + "optionally prefixed by flat: or followed by ~<tolerance>: " + spec);
+    }
+
+    public boolean isContrast() {
+        return mContrastRadius > 0;
+    }
+
+    public int getContrastRadius() {
+        return mContrastRadius;
+    }
+
+    public double getTolerance() {
+        return mTolerance;
+    }
+
+    public boolean isFlattened() {
+        return mFlattened;
+    }
+
+    // Standard deviation of the blur, from the variance (width^2 - 1) / 12 of each pass.
+    public double getSigma() {
+        double variance = 0;
+        for (int width : mWidths) {
+            variance += (width * width - 1) / 12.0;
+        }
+        return Math.sqrt(variance);
+    }
+
+    public int getPasses() {
+        return mWidths.length;
+    }
+
+    public int getWidth(int pass) {
+        return mWidths[pass];
+    }
+
+    public int getMaxWidth() {
+        int max = 2 * mContrastRadius + 1;
+        for (int width : mWidths) {
+            max = Math.max(max, width);
+        }
+        return max;
+    }
+
+    // How far the filter reaches from a pixel: the sum of the pass radii.
+    public int getReach() {
+        int reach = mContrastRadius;
+        for (int width : mWidths) {
+            reach += (width - 1) / 2;
+        }
+        return reach;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BlurParams && Arrays.equals(mWidths, ((BlurParams) o).mWidths)
+                && mContrastRadius == ((BlurParams) o).mContrastRadius && mTolerance == ((BlurParams) o).mTolerance
+                && mFlattened == ((BlurParams) o).mFlattened;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((Arrays.hashCode(mWidths) * 31 + mContrastRadius) * 31 + Double.hashCode(mTolerance)) * 31
+                + Boolean.hashCode(mFlattened);
+    }
+
+    @Override
+    public String toString() {
+        return mSpec;
+    }
+}
@@ -0,0 +1,342 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BlurPipeline runs a batch as three stages: an ImageLoader task per file
+ * reads and decodes it, blur lanes hand decoded images to the BlurEngine,
+ * and several ImageEncoder tasks write the results. The stages are joined
+ * by bounded blocking queues, so a fast stage waits for a slow one instead of
+ * piling images up on the heap, and no stage ever polls.
+ *
+ * End of stream is signalled with ImageHolder.END_OF_STREAM: the loader of
+ * the last file puts one, and once every lane has seen it the blur stage
+ * puts one per encoder.
+ *
+ * The blur stage keeps several images in the engine's pool at once, one per
+ * blur lane, so workers that run out of tiles of one image steal tiles of
+ * another instead of idling at the end of each image. Work is admitted
+ * largest first (longest processing time first): files are read in order of
+ * decreasing pixel count, taken from their headers, and the lanes take the
+ * largest decoded image, so the biggest images start early and small ones
+ * fill the gaps at the end rather than a big image finishing last on its own. The decoded queue is therefore
+ * a priority queue, bounded by the PixelBudget alone. -Dforkblur.blur.lanes
+ * sets the number of lanes (default a quarter of the pool's parallelism, at
+ * least 2).
+ *
+ * Loaders and encoders run on IoExecutors, off the engine's workers. Up to
+ * -Dforkblur.io.concurrency (default 256) files are read at once, which
+ * keeps slow or remote storage busy, but only decoders of them decode at
+ * once, since decoding needs CPU and heap.
+ *
+ * The blurred queue bounds the number of images waiting to be written; the
+ * PixelBudget bounds the bytes of all images in flight, from decode until the blurred image is written.
+ *
+ * Stage latencies, queue waits and depths, throughput and the engine's pool
+ * statistics are recorded in a BlurMetrics.
+ *
+ * With a BlurCache, files whose output is cached are restored before the
+ * stages start and never decoded; the others are stored after encoding.
+ *
+ * Outputs are JPEG unless -Dforkblur.output.format=ppm asks for raw PPM,
+ * which skips JPEG encoding when the output only feeds another stage.
+ */
+public class BlurPipeline {
+
+    private final BlurEngine mEngine;
+    private final int mDecoders;
+    private final int mEncoders;
+    private final int mQueueCapacity;
+    private final PixelBudget mBudget;
+    private final BlurMetrics mMetrics;
+    private final BlurCache mCache;
+    private final int mIoConcurrency = Integer.getInteger("forkblur.io.concurrency", 256);
+    private final int mBlurLanes;
+    // Split threshold of the blurs; 0 lets SplitPolicy choose one.
+    private int mThreshold;
+    // Output format: "jpg", or ImageCodecs.RAW for outputs that feed a later stage.
+    private final String mFormat = System.getProperty("forkblur.output.format", "jpg");
+
+    public BlurPipeline(BlurEngine engine, int decoders, int encoders, int queueCapacity) {
+        this(engine, decoders, encoders, queueCapacity, Runtime.getRuntime().maxMemory() / 2, new BlurMetrics());
+    }
+
+    public BlurPipeline(BlurEngine engine, int decoders, int encoders, int queueCapacity,
+                        long budgetBytes, BlurMetrics metrics) {
+        this(engine, decoders, encoders, queueCapacity, budgetBytes, metrics, null);
+    }
+
+    public BlurPipeline(BlurEngine engine, int decoders, int encoders, int queueCapacity,
+                        long budgetBytes, BlurMetrics metrics, BlurCache cache) {
+        mEngine = engine;
+        mDecoders = decoders;
+        mEncoders = encoders;
+        mQueueCapacity = queueCapacity;
+        mBudget = new PixelBudget(budgetBytes);
+        mMetrics = metrics;
+        mCache = cache;
+        mBlurLanes = Integer.getInteger("forkblur.blur.lanes", Math.max(2, engine.getPool().getParallelism() / 4));
+    }
+
+    public BlurMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public String getOutputFormat() {
+        return mFormat;
+    }
+
+    // Pins the split threshold of every blur, for BlurBenchmark's threshold sweep.
+    void setThreshold(int threshold) {
+        mThreshold = threshold;
+    }
+
+    public int run(File[] files, File dstDir) throws InterruptedException, ExecutionException {
+        return run(files, dstDir, BlurParams.DEFAULT);
+    }
+
+    /**
+     * Blurs every file into dstDir and returns the number of images written,
+     * including those restored from the cache. Files that cannot be decoded,
+     * blurred or encoded are reported and skipped.
+     */
+    public int run(File[] files, File dstDir, BlurParams params) throws InterruptedException, ExecutionException {
+        return blur(files, dstDir, params).size();
+    }
+
+    /**
+     * Blurs every file into dstDir like run(), and returns the names of the
+     * files whose output was written or restored from the cache by this call.
+     */
+    public Set<String> blur(File[] files, File dstDir, BlurParams params)
+            throws InterruptedException, ExecutionException {
+        List<File> pendingFiles = new ArrayList<File>();
+        Map<String, String> cacheKeys = new ConcurrentHashMap<String, String>();
+        Set<String> written = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        for (File file : files) {
+            if (mCache != null && restore(file, dstDir, params, cacheKeys)) {
+                written.add(file.getName());
+            } else {
+                pendingFiles.add(file);
+            }
+        }
+        // Most pixels first, as read from the headers; compressed size says little about blur cost.
+        final Map<File, Long> pixels = new HashMap<File, Long>();
+        for (File file : pendingFiles) {
+            pixels.put(file, ImageCodecs.pixels(file));
+        }
+        Collections.sort(pendingFiles, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(pixels.get(b), pixels.get(a));
+            }
+        });
+        BlockingQueue<ImageHolder> decodedQueue = new PriorityBlockingQueue<ImageHolder>();
+        BlockingQueue<ImageHolder> blurredQueue = new ArrayBlockingQueue<ImageHolder>(mQueueCapacity);
+        AtomicInteger remainingFiles = new AtomicInteger(pendingFiles.size());
+        Semaphore decodeSlots = new Semaphore(mDecoders);
+        mMetrics.gauge("decoded_queue_depth", decodedQueue::size);
+        mMetrics.gauge("blurred_queue_depth", blurredQueue::size);
+        mMetrics.gauge("budget_bytes_in_use", mBudget::getInUse);
+        mMetrics.gauge("buffer_pool_retained_bytes", mEngine.getBufferPool()::getRetainedBytes);
+        mMetrics.gauge("buffer_pool_hits", mEngine.getBufferPool()::getHits);
+        mMetrics.gauge("buffer_pool_misses", mEngine.getBufferPool()::getMisses);
+        mMetrics.pool("blur", mEngine.getPool());
+
+        PixelBudget.Run budget = mBudget.startRun();
+        IoExecutor readExecutor = new IoExecutor("read-", mIoConcurrency);
+        IoExecutor encodeExecutor = new IoExecutor("encode-", mEncoders);
+        ExecutorService laneExecutor = Executors.newFixedThreadPool(mBlurLanes);
+        try {
+            for (File file : pendingFiles) {
+                readExecutor.submit(new ImageLoader(file, decodedQueue, remainingFiles, decodeSlots, budget, mMetrics));
+            }
+            if (pendingFiles.isEmpty()) {
+                decodedQueue.put(ImageHolder.END_OF_STREAM);
+            }
+            List<Future<Integer>> encoders = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < mEncoders; i++) {
+                encoders.add(encodeExecutor.submit(new ImageEncoder(blurredQueue, dstDir, mFormat, budget, mEngine, mMetrics,
+                        mCache, cacheKeys, written)));
+            }
+
+            // Blur stage: the lanes only wait, the engine's pool does the work.
+            List<Future<Integer>> lanes = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < mBlurLanes; i++) {
+                lanes.add(laneExecutor.submit(blurLane(decodedQueue, blurredQueue, params, budget)));
+            }
+            for (Future<Integer> lane : lanes) {
+                lane.get();
+            }
+            for (int i = 0; i < mEncoders; i++) {
+                blurredQueue.put(ImageHolder.END_OF_STREAM);
+            }
+
+            for (Future<Integer> encoder : encoders) {
+                encoder.get();
+            }
+            return written;
+        } finally {
+            readExecutor.close();
+            encodeExecutor.close();
+            laneExecutor.shutdownNow();
+            // Images an aborted run dropped on the way still hold budget.
+            budget.close();
+            if (mCache != null) {
+                try {
+                    mCache.save();
+                } catch (IOException ioe) {
+                    System.out.println("# Could not save the cache index: " + ioe);
+                }
+            }
+        }
+    }
+
+    // Blurs decoded images, largest first, until the end of stream; returns how many.
+    private Callable<Integer> blurLane(final BlockingQueue<ImageHolder> decodedQueue,
+                                       final BlockingQueue<ImageHolder> blurredQueue, final BlurParams params,
+                                       final PixelBudget.Run budget) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws InterruptedException {
+                int blurred = 0;
+                while (true) {
+                    long waitStart = System.nanoTime();
+                    ImageHolder imageHolder = decodedQueue.take();
+                    mMetrics.histogram("decoded_queue_take_wait").recordSince(waitStart);
+                    if (imageHolder == ImageHolder.END_OF_STREAM) {
+                        // Leave it for the other lanes.
+                        decodedQueue.put(imageHolder);
+                        return blurred;
+                    }
+                    long blurStart = System.nanoTime();
+                    BufferedImage blurredImage;
+                    try {
+                        blurredImage = mEngine.filter(imageHolder.getImage(), FilterChain.of(params), mThreshold);
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        // Skip the image, like one that cannot be decoded.
+                        mMetrics.counter("blur_errors").increment();
+                        System.out.println("# Could not blur " + imageHolder.getFilename() + ": " + e);
+                        budget.release(PixelBudget.bytesFor(imageHolder));
+                        continue;
+                    }
+                    mMetrics.histogram("blur").recordSince(blurStart);
+                    mMetrics.counter("pixels_blurred").add(imageHolder.getPixelArraySize());
+                    mMetrics.counter("images_blurred").increment();
+                    waitStart = System.nanoTime();
+                    blurredQueue.put(new ImageHolder(blurredImage, imageHolder.getFilename()));
+                    mMetrics.histogram("blurred_queue_put_wait").recordSince(waitStart);
+                    blurred++;
+                }
+            }
+        };
+    }
+
+    // Restores the cached output of file, or records its key for the encoder to store.
+    private boolean restore(File file, File dstDir, BlurParams params, Map<String, String> cacheKeys) {
+        long startTime = System.nanoTime();
+        try {
+            String key = mCache.key(file, params, mFormat);
+            if (mCache.restore(key, new File(dstDir, blurredName(file.getName(), mFormat)))) {
+                mMetrics.histogram("cache_restore").recordSince(startTime);
+                mMetrics.counter("cache_hits").increment();
+                return true;
+            }
+            cacheKeys.put(file.getName(), key);
+        } catch (IOException ioe) {
+            System.out.println("# Cache lookup failed for " + file + ": " + ioe);
+        }
+        mMetrics.counter("cache_misses").increment();
+        return false;
+    }
+
+    // Name of the blurred output in format for a source file name.
+    static String blurredName(String srcName, String format) {
+        String dstName = srcName.replace(".jpg", "");
+        String[] dstNameArr = dstName.split("\\\\");
+        return dstNameArr[dstNameArr.length - 1] + "-blur." + ImageCodecs.extension(format);
+    }
+}
+
+class ImageEncoder implements Callable<Integer> {
+    private final BlockingQueue<ImageHolder> blurredQueue;
+    private final File dstDir;
+    private final PixelBudget.Run budget;
+    private final BlurEngine engine;
+    private final BlurMetrics metrics;
+    private final BlurCache cache;
+    private final Map<String, String> cacheKeys;
+    private final Set<String> writtenFiles;
+    private final String format;
+
+    ImageEncoder(BlockingQueue<ImageHolder> blurredQueue, File dstDir, String format, PixelBudget.Run budget,
+                 BlurEngine engine, BlurMetrics metrics, BlurCache cache, Map<String, String> cacheKeys,
+                 Set<String> writtenFiles) {
+        this.blurredQueue = blurredQueue;
+        this.dstDir = dstDir;
+        this.format = format;
+        this.budget = budget;
+        this.engine = engine;
+        this.metrics = metrics;
+        this.cache = cache;
+        this.cacheKeys = cacheKeys;
+        this.writtenFiles = writtenFiles;
+    }
+
+    @Override
+    public Integer call() throws InterruptedException {
+        int written = 0;
+        while (true) {
+            long waitStart = System.nanoTime();
+            ImageHolder imageHolder = blurredQueue.take();
+            metrics.histogram("blurred_queue_take_wait").recordSince(waitStart);
+            if (imageHolder == ImageHolder.END_OF_STREAM) {
+                return written;
+            }
+            String dstName = BlurPipeline.blurredName(imageHolder.getFilename(), format);
+            File dstFile = new File(dstDir, dstName);
+            try {
+                long encodeStart = System.nanoTime();
+                long bytes = ImageCodecs.write(imageHolder.getImage(), format, dstFile);
+                if (bytes >= 0) {
+                    metrics.histogram("encode").recordSince(encodeStart);
+                    metrics.counter("bytes_written").add(bytes);
+                    metrics.counter("images_written").increment();
+                    written++;
+                    writtenFiles.add(imageHolder.getFilename());
+                    String key = cacheKeys.get(imageHolder.getFilename());
+                    if (cache != null && key != null) {
+                        cache.store(key, dstFile);
+                    }
+                } else {
+                    metrics.counter("encode_errors").increment();
+                    System.out.println("# No " + format + " writer for file: " + dstName);
+                }
+            } catch (IOException ioe) {
+                metrics.counter("encode_errors").increment();
+                ioe.printStackTrace();
+            } finally {
+                engine.recycle(imageHolder.getImage());
+                budget.release(PixelBudget.bytesFor(imageHolder));
+            }
+        }
+    }
+}
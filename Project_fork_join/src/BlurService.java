@@ -0,0 +1,306 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * BlurService lets a request-serving process use a BlurEngine without
+ * blocking on it. submit() queues a job and returns a CompletableFuture of
+ * the filtered image at once.
+ *
+ * Every job has a deadline. A job still queued at its deadline is dropped
+ * without running, and a running one is cancelled; either way its future
+ * fails with a TimeoutException. Cancelling the future, for example when the
+ * client has gone away, drops or cancels the job the same way. A running
+ * job is stopped through its Cancellation, which the fork/join tasks check
+ * in compute() before they split or filter, so the engine's workers move on
+ * after at most the leaf tasks they are in.
+ *
+ * Jobs wait in a priority queue: INTERACTIVE jobs before BATCH jobs, then
+ * earliest deadline first. At most jobs jobs run on the engine at once, and
+ * BATCH jobs may only take jobs - 1 of those slots, so an interactive job
+ * never waits for batch jobs to finish. When the queue holds maxQueued jobs,
+ * a new interactive job displaces the queued batch job with the latest
+ * deadline, and any other new job is rejected: under load work is shed at
+ * once instead of finishing late.
+ *
+ * Results are TYPE_INT_RGB images in pooled arrays; pass them to recycle()
+ * once they have been written. Jobs, queue waits and run times are recorded
+ * in a BlurMetrics.
+ */
+public class BlurService implements AutoCloseable {
+
+    public enum Priority {
+        INTERACTIVE, BATCH
+    }
+
+    private final BlurEngine mEngine;
+    private final int mMaxQueued;
+    private final int mBatchSlots;
+    private final BlurMetrics mMetrics;
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    // Guarded by this.
+    private final PriorityQueue<Job> mQueue = new PriorityQueue<Job>();
+    private int mRunningBatch;
+    private long mSequence;
+    private boolean mClosed;
+
+    public BlurService(BlurEngine engine) {
+        this(engine, Math.max(2, engine.getPool().getParallelism() / 4), 1024, new BlurMetrics());
+    }
+
+    public BlurService(BlurEngine engine, int jobs, int maxQueued, BlurMetrics metrics) {
+        if (jobs < 2) {
+            throw new IllegalArgumentException("need at least 2 jobs, one kept for interactive work: " + jobs);
+        }
+        mEngine = engine;
+        mMaxQueued = maxQueued;
+        mBatchSlots = jobs - 1;
+        mMetrics = metrics;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "blur-service-deadlines");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setRemoveOnCancelPolicy(true);
+        mMetrics.gauge("service_queue_depth", this::getQueued);
+        for (int i = 0; i < jobs; i++) {
+            Thread runner = new Thread("blur-service-" + i) {
+                @Override
+                public void run() {
+                    runJobs();
+                }
+            };
+            runner.setDaemon(true);
+            runner.start();
+        }
+    }
+
+    public BlurMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public synchronized int getQueued() {
+        return mQueue.size();
+    }
+
+    public CompletableFuture<BufferedImage> submit(BufferedImage image, BlurParams params, Priority priority,
+                                                   long timeout, TimeUnit unit) {
+        return submit(image, FilterChain.of(params), priority, timeout, unit);
+    }
+
+    /**
+     * Queues image to be filtered with chain and returns its future result,
+     * which fails with a TimeoutException if the job has not finished within
+     * timeout, and with a RejectedExecutionException if it was shed.
+     */
+    public CompletableFuture<BufferedImage> submit(BufferedImage image, FilterChain chain, Priority priority,
+                                                   long timeout, TimeUnit unit) {
+        final Job job = new Job(image, chain, priority, System.nanoTime() + unit.toNanos(timeout));
+        mMetrics.counter("jobs_submitted").increment();
+        try {
+            job.mTimeout = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (job.mResult.completeExceptionally(new TimeoutException("Blur missed its deadline"))) {
+                        mMetrics.counter("jobs_expired").increment();
+                    }
+                }
+            }, job.mDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            job.mResult.completeExceptionally(new RejectedExecutionException("BlurService is closed"));
+            return job.mResult;
+        }
+        // However the future ends, stop the job and its timer.
+        job.mResult.whenComplete(new BiConsumer<BufferedImage, Throwable>() {
+            @Override
+            public void accept(BufferedImage image, Throwable failure) {
+                job.mTimeout.cancel(false);
+                if (failure != null) {
+                    job.mCancellation.cancel();
+                    dequeue(job);
+                }
+            }
+        });
+        Job shed = null;
+        synchronized (this) {
+            if (mClosed) {
+                job.mResult.completeExceptionally(new RejectedExecutionException("BlurService is closed"));
+                return job.mResult;
+            }
+            if (mQueue.size() >= mMaxQueued) {
+                shed = priority == Priority.INTERACTIVE ? latestBatchJob() : null;
+                if (shed == null) {
+                    mMetrics.counter("jobs_rejected").increment();
+                    job.mResult.completeExceptionally(new RejectedExecutionException("BlurService queue is full"));
+                    return job.mResult;
+                }
+                mQueue.remove(shed);
+            }
+            job.mSequence = mSequence++;
+            mQueue.add(job);
+            notifyAll();
+        }
+        if (shed != null) {
+            mMetrics.counter("jobs_shed").increment();
+            shed.mResult.completeExceptionally(new RejectedExecutionException("Shed for an interactive job"));
+        }
+        return job.mResult;
+    }
+
+    // The queued batch job with the latest deadline, or null if none is queued.
+    private Job latestBatchJob() {
+        Job latest = null;
+        for (Job job : mQueue) {
+            if (job.mPriority == Priority.BATCH && (latest == null || job.mDeadline - latest.mDeadline > 0)) {
+                latest = job;
+            }
+        }
+        return latest;
+    }
+
+    private synchronized void dequeue(Job job) {
+        mQueue.remove(job);
+    }
+
+    // Waits for the next job this runner may start; null once the service is closed.
+    private synchronized Job next() throws InterruptedException {
+        while (!mClosed) {
+            Job job = mQueue.peek();
+            // Interactive jobs sort first, so a batch job at the head means none is waiting.
+            if (job != null && (job.mPriority == Priority.INTERACTIVE || mRunningBatch < mBatchSlots)) {
+                mQueue.poll();
+                if (job.mPriority == Priority.BATCH) {
+                    mRunningBatch++;
+                }
+                return job;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private synchronized void finished(Job job) {
+        if (job.mPriority == Priority.BATCH) {
+            mRunningBatch--;
+            notifyAll();
+        }
+    }
+
+    private void runJobs() {
+        try {
+            Job job;
+            while ((job = next()) != null) {
+                try {
+                    run(job);
+                } finally {
+                    finished(job);
+                }
+            }
+        } catch (InterruptedException ie) {
+            // The service was closed.
+        }
+    }
+
+    private void run(Job job) {
+        mMetrics.histogram("job_queue_wait").recordSince(job.mSubmitted);
+        if (job.mResult.isDone()) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        BufferedImage image = job.mImage;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        PixelBufferPool bufferPool = mEngine.getBufferPool();
+        int[] buffer = RasterAccess.hasDirectPixels(image) ? null : bufferPool.acquire(w * h);
+        int[] src = RasterAccess.readPixels(image, buffer);
+        int[] dst = bufferPool.acquire(w * h);
+        try {
+            mEngine.invoke(job.mChain.task(src, dst, w, h, 0, bufferPool, job.mCancellation));
+        } catch (CancellationException ce) {
+            // Tasks of the job may still be writing src and dst, so neither goes back to the pool.
+            mMetrics.counter("jobs_cancelled").increment();
+            return;
+        } catch (RuntimeException | Error e) {
+            mMetrics.counter("jobs_failed").increment();
+            job.mResult.completeExceptionally(e);
+            return;
+        }
+        bufferPool.release(buffer);
+        if (job.mResult.complete(RasterAccess.wrapRgb(dst, w, h))) {
+            mMetrics.histogram("job_run").recordSince(startTime);
+            mMetrics.counter("jobs_completed").increment();
+        } else {
+            // The deadline passed or the caller gave up just as the job finished.
+            bufferPool.release(dst);
+        }
+    }
+
+    // Return the pixels of a result image to the engine's pool.
+    public void recycle(BufferedImage result) {
+        mEngine.recycle(result);
+    }
+
+    /**
+     * Stops the service: queued jobs are cancelled, running jobs are left to
+     * finish, and the runners stop. The engine is not closed.
+     */
+    @Override
+    public void close() {
+        List<Job> queued;
+        synchronized (this) {
+            mClosed = true;
+            queued = new ArrayList<Job>(mQueue);
+            mQueue.clear();
+            notifyAll();
+        }
+        for (Job job : queued) {
+            job.mResult.cancel(false);
+        }
+        mTimer.shutdown();
+    }
+
+    private static class Job implements Comparable<Job> {
+        final BufferedImage mImage;
+        final FilterChain mChain;
+        final Priority mPriority;
+        final long mDeadline;
+        final long mSubmitted = System.nanoTime();
+        final CompletableFuture<BufferedImage> mResult = new CompletableFuture<BufferedImage>();
+        final Cancellation mCancellation = new Cancellation();
+        long mSequence;
+        ScheduledFuture<?> mTimeout;
+
+        Job(BufferedImage image, FilterChain chain, Priority priority, long deadline) {
+            mImage = image;
+            mChain = chain;
+            mPriority = priority;
+            mDeadline = deadline;
+        }
+
+        // Interactive first, then earliest deadline, then first submitted.
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.compareTo(other.mPriority);
+            }
+            if (mDeadline != other.mDeadline) {
+                return mDeadline - other.mDeadline < 0 ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * BoxKernel is the running-sum box filter shared by the fork/join blur tasks.
+ * Instead of re-reading every tap of the window for each pixel, it keeps
+ * integer per-channel sums, adds the pixel entering the window, subtracts the
+ * one leaving it and divides once per output pixel. The cost per pixel is
+ * therefore independent of the blur width.
+ */
+final class BoxKernel {
+
+    private BoxKernel() {
+    }
+
+    /**
+     * Blurs positions [from, to) of a line of count pixels stored at
+     * base, base + step, base + 2 * step, ... and writes the averages to the
+     * same positions of dst. Window reads are clamped to the ends of the line,
+     * exactly like the Math.min/Math.max clamping of the per-tap loop.
+     */
+    static void blurLine(int[] src, int[] dst, int base, int step, int count,
+                         int from, int to, int blurWidth) {
+        if (from >= to) {
+            return;
+        }
+        int sidePixels = (blurWidth - 1) / 2;
+        int last = count - 1;
+
+        // Prime the window centred on the first output position.
+        int rs = 0, gs = 0, bs = 0;
+        for (int mi = from - sidePixels; mi <= from + sidePixels; mi++) {
+            int pixel = src[base + Math.min(Math.max(mi, 0), last) * step];
+            rs += (pixel & 0x00ff0000) >> 16;
+            gs += (pixel & 0x0000ff00) >> 8;
+            bs += (pixel & 0x000000ff);
+        }
+
+        for (int index = from; ; index++) {
+            // Re-assemble destination pixel.
+            dst[base + index * step] = (0xff000000) | ((rs / blurWidth) << 16)
+                    | ((gs / blurWidth) << 8) | (bs / blurWidth);
+            if (index + 1 >= to) {
+                return;
+            }
+
+            // Slide the window one pixel: add the entering tap, drop the leaving one.
+            int in = src[base + Math.min(index + sidePixels + 1, last) * step];
+            int out = src[base + Math.max(index - sidePixels, 0) * step];
+            rs += ((in & 0x00ff0000) >> 16) - ((out & 0x00ff0000) >> 16);
+            gs += ((in & 0x0000ff00) >> 8) - ((out & 0x0000ff00) >> 8);
+            bs += (in & 0x000000ff) - (out & 0x000000ff);
+        }
+    }
+
+    /**
+     * Blurs the columns [x0, x1) of rows [y0, y1) of a width x height image
+     * vertically. Rather than walking each column with a stride of width, it
+     * keeps one running sum per column and moves down the tile a row at a
+     * time, so every memory access is sequential. Rows outside the image are
+     * clamped to the first and last row.
+     */
+    static void blurColumns(int[] src, int[] dst, int width, int height,
+                            int x0, int x1, int y0, int y1, int blurWidth) {
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        int sidePixels = (blurWidth - 1) / 2;
+        int last = height - 1;
+        int cols = x1 - x0;
+        int[] sums = new int[cols * 3]; // r, g, b interleaved per column
+
+        // Prime the windows centred on the first output row, halo rows included.
+        for (int mi = y0 - sidePixels; mi <= y0 + sidePixels; mi++) {
+            int row = Math.min(Math.max(mi, 0), last) * width + x0;
+            for (int c = 0, s = 0; c < cols; c++, s += 3) {
+                int pixel = src[row + c];
+                sums[s] += (pixel & 0x00ff0000) >> 16;
+                sums[s + 1] += (pixel & 0x0000ff00) >> 8;
+                sums[s + 2] += (pixel & 0x000000ff);
+            }
+        }
+
+        for (int y = y0; ; y++) {
+            int row = y * width + x0;
+            for (int c = 0, s = 0; c < cols; c++, s += 3) {
+                dst[row + c] = (0xff000000) | ((sums[s] / blurWidth) << 16)
+                        | ((sums[s + 1] / blurWidth) << 8) | (sums[s + 2] / blurWidth);
+            }
+            if (y + 1 >= y1) {
+                return;
+            }
+
+            int inRow = Math.min(y + sidePixels + 1, last) * width + x0;
+            int outRow = Math.max(y - sidePixels, 0) * width + x0;
+            for (int c = 0, s = 0; c < cols; c++, s += 3) {
+                int in = src[inRow + c];
+                int out = src[outRow + c];
+                sums[s] += ((in & 0x00ff0000) >> 16) - ((out & 0x00ff0000) >> 16);
+                sums[s + 1] += ((in & 0x0000ff00) >> 8) - ((out & 0x0000ff00) >> 8);
+                sums[s + 2] += (in & 0x000000ff) - (out & 0x000000ff);
+            }
+        }
+    }
+}
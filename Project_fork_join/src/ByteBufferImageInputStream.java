@@ -0,0 +1,51 @@
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An ImageInputStream over bytes already in memory, heap or mapped. Unlike
+ * wrapping an InputStream, it seeks within the buffer and never copies it
+ * into an ImageIO cache.
+ */
+class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+    private final ByteBuffer mBuffer;
+
+    ByteBufferImageInputStream(ByteBuffer buffer) {
+        mBuffer = buffer.slice();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= mBuffer.limit()) {
+            return -1;
+        }
+        return mBuffer.get((int) streamPos++) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        int available = (int) Math.max(mBuffer.limit() - streamPos, 0);
+        if (available == 0) {
+            return -1;
+        }
+        int count = Math.min(len, available);
+        ByteBuffer view = mBuffer.duplicate();
+        view.position((int) streamPos);
+        view.get(b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return mBuffer.limit();
+    }
+}
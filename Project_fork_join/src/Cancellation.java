@@ -0,0 +1,35 @@
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancellation is the flag that stops a running blur job. The fork/join
+ * tasks check it at the start of compute(), before they split or filter, so
+ * once it is set every worker drops the job after at most the leaf task it
+ * is in, and the invoking thread gets a CancellationException.
+ *
+ * Tasks of a cancelled job may still be running or queued when the
+ * exception arrives, so the arrays they write must not be handed to another
+ * job: they are left to the GC instead of going back to a PixelBufferPool.
+ */
+final class Cancellation {
+
+    // Never set; for blurs that cannot be cancelled.
+    static final Cancellation NONE = new Cancellation();
+
+    private volatile boolean mCancelled;
+
+    void cancel() {
+        if (this != NONE) {
+            mCancelled = true;
+        }
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    void check() {
+        if (mCancelled) {
+            throw new CancellationException("Blur cancelled");
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ContrastFilter2D computes a local contrast (dissimilarity) map: for every
+ * pixel and channel, the mean absolute difference between the pixel and the
+ * other pixels of the (2 * radius + 1)^2 window around it, with the same
+ * clamped edges as the blur. Flat regions come out dark and edges and
+ * texture bright.
+ *
+ * Comparing every pair of pixels in a window costs O(window) per pixel.
+ * Instead each row keeps a 256-bin histogram per channel of the window,
+ * moved one column at a time, and the sum of absolute differences to a value
+ * v is read from the histogram as
+ *   v * count(<= v) - sum(<= v) + sum(> v) - v * count(> v),
+ * so a pixel costs O(radius) histogram updates plus one scan of at most 128
+ * bins per channel.
+ *
+ * The image is split into tiles with the same fork/join splitting as
+ * ForkBlur2D. Tiles only read the source, so they never depend on each
+ * other.
+ *
+ * A FilterChain may pass per-pixel ops, which each tile applies to its own
+ * pixels as soon as it has computed them, and a BlurService a Cancellation,
+ * which every task checks before it splits or filters.
+ */
+public class ContrastFilter2D extends RecursiveAction {
+
+    private static final int BINS = 256;
+
+    private int[] mSource;
+    private int[] mDestination;
+    private int mWidth;
+    private int mHeight;
+    private int mX0;
+    private int mY0;
+    private int mX1;
+    private int mY1;
+    private int mRadius;
+    private int mThreshold;
+    private PixelOp[] mOps;
+    private Cancellation mCancellation;
+
+    public ContrastFilter2D(int[] src, int[] dst, int width, int height, int radius) {
+        this(src, dst, width, height, radius, 0);
+    }
+
+    // A threshold of 0 lets SplitPolicy choose one for the pool the task runs in.
+    public ContrastFilter2D(int[] src, int[] dst, int width, int height, int radius, int threshold) {
+        this(src, dst, width, height, radius, threshold, null, Cancellation.NONE);
+    }
+
+    // ops, if not null, are applied to the contrast map, with src as their input.
+    ContrastFilter2D(int[] src, int[] dst, int width, int height, int radius, int threshold, PixelOp[] ops,
+                     Cancellation cancellation) {
+        this(src, dst, width, height, 0, 0, width, height, radius, threshold, ops, cancellation);
+    }
+
+    private ContrastFilter2D(int[] src, int[] dst, int width, int height, int x0, int y0, int x1, int y1,
+                             int radius, int threshold, PixelOp[] ops, Cancellation cancellation) {
+        mSource = src;
+        mDestination = dst;
+        mWidth = width;
+        mHeight = height;
+        mX0 = x0;
+        mY0 = y0;
+        mX1 = x1;
+        mY1 = y1;
+        mRadius = radius;
+        mThreshold = threshold;
+        mOps = ops;
+        mCancellation = cancellation;
+    }
+
+    protected void computeDirectly() {
+        int side = 2 * mRadius + 1;
+        int pixels = side * side;
+        // Counts per bin, red at 0, green at BINS, blue at 2 * BINS, and the sum of each channel.
+        int[] counts = new int[3 * BINS];
+        long[] sums = new long[3];
+        for (int y = mY0; y < mY1; y++) {
+            Arrays.fill(counts, 0);
+            Arrays.fill(sums, 0);
+            for (int dx = -mRadius; dx <= mRadius; dx++) {
+                addColumn(counts, sums, mX0 + dx, y, 1);
+            }
+            for (int x = mX0; ; x++) {
+                int pixel = mSource[y * mWidth + x];
+                int r = meanDifference(counts, 0, sums[0], pixels, (pixel >> 16) & 0xff);
+                int g = meanDifference(counts, BINS, sums[1], pixels, (pixel >> 8) & 0xff);
+                int b = meanDifference(counts, 2 * BINS, sums[2], pixels, pixel & 0xff);
+                mDestination[y * mWidth + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+                if (x + 1 >= mX1) {
+                    break;
+                }
+                addColumn(counts, sums, x + mRadius + 1, y, 1);
+                addColumn(counts, sums, x - mRadius, y, -1);
+            }
+        }
+        if (mOps != null) {
+            FilterChain.apply(mOps, mSource, mDestination, mDestination, mWidth, mX0, mX1, mY0, mY1);
+        }
+    }
+
+    // Adds (delta 1) or removes (delta -1) the window's pixels in column x, clamped to the image.
+    private void addColumn(int[] counts, long[] sums, int x, int y, int delta) {
+        int column = Math.min(Math.max(x, 0), mWidth - 1);
+        for (int dy = -mRadius; dy <= mRadius; dy++) {
+            int row = Math.min(Math.max(y + dy, 0), mHeight - 1);
+            int pixel = mSource[row * mWidth + column];
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            counts[r] += delta;
+            counts[BINS + g] += delta;
+            counts[2 * BINS + b] += delta;
+            sums[0] += delta * r;
+            sums[1] += delta * g;
+            sums[2] += delta * b;
+        }
+    }
+
+    /**
+     * Mean of |v - other| over the other pixels of a window of pixels
+     * pixels, whose histogram is counts[base..base + BINS) and sum is sum.
+     * Only the bins on the shorter side of v are scanned; the totals give
+     * the other side.
+     */
+    private static int meanDifference(int[] counts, int base, long sum, int pixels, int v) {
+        if (pixels == 1) {
+            return 0;
+        }
+        long count = 0;
+        long partial = 0;
+        long difference;
+        if (v < BINS / 2) {
+            for (int bin = base; bin <= base + v; bin++) {
+                count += counts[bin];
+                partial += (long) counts[bin] * (bin - base);
+            }
+            difference = v * count - partial + (sum - partial) - v * (pixels - count);
+        } else {
+            for (int bin = base + v + 1; bin < base + BINS; bin++) {
+                count += counts[bin];
+                partial += (long) counts[bin] * (bin - base);
+            }
+            difference = partial - v * count + v * (pixels - count) - (sum - partial);
+        }
+        // The pixel itself adds nothing to the sum but is not one of the others.
+        return (int) (difference / (pixels - 1));
+    }
+
+    @Override
+    protected void compute() {
+        mCancellation.check();
+        if (mThreshold == 0) {
+            mThreshold = SplitPolicy.threshold((long) mWidth * mHeight, 2 * mRadius + 1,
+                    SplitPolicy.currentParallelism());
+        }
+        int tileWidth = mX1 - mX0;
+        int tileHeight = mY1 - mY0;
+        if ((long) tileWidth * tileHeight <= mThreshold || (tileWidth == 1 && tileHeight == 1)) {
+            computeDirectly();
+            return;
+        }
+        // Halve the longer side so tiles stay close to square, but keep rows
+        // SplitPolicy.minExtent wide: each row primes its histograms.
+        boolean splitX = tileWidth >= tileHeight && tileWidth / 2 >= SplitPolicy.minExtent(2 * mRadius + 1);
+        if (!splitX && tileHeight < 2) {
+            computeDirectly();
+            return;
+        }
+        if (splitX) {
+            int split = mX0 + tileWidth / 2;
+            invokeAll(tile(mX0, mY0, split, mY1), tile(split, mY0, mX1, mY1));
+        } else {
+            int split = mY0 + tileHeight / 2;
+            invokeAll(tile(mX0, mY0, mX1, split), tile(mX0, split, mX1, mY1));
+        }
+    }
+
+    // A task for part of this tile.
+    private ContrastFilter2D tile(int x0, int y0, int x1, int y1) {
+        return new ContrastFilter2D(mSource, mDestination, mWidth, mHeight, x0, y0, x1, y1, mRadius, mThreshold,
+                mOps, mCancellation);
+    }
+}
@@ -0,0 +1,333 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * FilterChain runs several filters over an image as a sequence of stages
+ * instead of one full-image pass per filter. A stage is one neighbourhood
+ * filter (a blur, a contrast map or an unsharp mask) followed by any number
+ * of per-pixel ops (brightness/contrast, grayscale). The ops are applied to
+ * each tile by the task that filtered it, right after its last pass, while
+ * the tile is still in cache, so they add no pass over memory and no
+ * intermediate array. Ops given before any neighbourhood filter form a stage
+ * of their own, which is a single pass however many ops it has.
+ *
+ * Consecutive brightness/contrast ops are merged into one lookup table.
+ * Stages after the first read the previous stage's output from one of two
+ * arrays taken from the engine's PixelBufferPool and reused for the whole
+ * chain.
+ *
+ * unsharp(sigma, amount) adds amount times the difference between a pixel
+ * and its Gaussian blur back to the pixel, which sharpens edges.
+ *
+ * Chains are written and parsed as stages joined by "+", each either a
+ * BlurParams spec or one of "unsharp:sigma,amount", "bc:brightness,contrast"
+ * and "gray", e.g. "gauss:2+bc:10,1.2+gray+unsharp:1,0.8".
+ */
+public final class FilterChain {
+
+    public static final FilterChain NONE = new FilterChain(Collections.<Stage>emptyList(), "none");
+
+    private final List<Stage> mStages;
+    private final String mSpec;
+
+    private FilterChain(List<Stage> stages, String spec) {
+        mStages = stages;
+        mSpec = spec;
+    }
+
+    public static FilterChain of(BlurParams params) {
+        return NONE.then(params);
+    }
+
+    public static FilterChain parse(String spec) {
+        FilterChain chain = NONE;
+        for (String token : spec.trim().split("\\+")) {
+            String[] parts = token.trim().split(":", 2);
+            String[] args = parts.length == 2 ? parts[1].split(",") : new String[0];
+            if (parts[0].equals("none") && parts.length == 1) {
+                continue;
+            } else if (parts[0].equals("gray") && parts.length == 1) {
+                chain = chain.grayscale();
+            } else if (parts[0].equals("bc") && args.length == 2) {
+                chain = chain.brightnessContrast(Integer.parseInt(args[0]), Double.parseDouble(args[1]));
+            } else if (parts[0].equals("unsharp") && args.length == 2) {
+                chain = chain.unsharp(Double.parseDouble(args[0]), Double.parseDouble(args[1]));
+            } else {
+                try {
+                    chain = chain.then(BlurParams.parse(token));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Expected a BlurParams spec, unsharp:<sigma>,<amount>, "
+                            + "bc:<brightness>,<contrast> or gray: " + token);
+                }
+            }
+        }
+        return chain;
+    }
+
+    // Appends a stage that applies params.
+    public FilterChain then(BlurParams params) {
+        return stage(new Stage(params, new PixelOp[0]), params.toString());
+    }
+
+    public FilterChain unsharp(double sigma, double amount) {
+        if (!(amount > 0)) {
+            throw new IllegalArgumentException("amount must be > 0: " + amount);
+        }
+        return stage(new Stage(BlurParams.gaussian(sigma), new PixelOp[]{new Unsharp(amount)}),
+                "unsharp:" + sigma + "," + amount);
+    }
+
+    // Adds brightness to every channel after scaling its distance from mid-grey by contrast.
+    public FilterChain brightnessContrast(int brightness, double contrast) {
+        if (!(contrast >= 0)) {
+            throw new IllegalArgumentException("contrast must be >= 0: " + contrast);
+        }
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = clamp((int) Math.round((v - 128) * contrast + 128 + brightness));
+        }
+        return op(new Lut(table), "bc:" + brightness + "," + contrast);
+    }
+
+    public FilterChain grayscale() {
+        return op(new Grayscale(), "gray");
+    }
+
+    public int getStages() {
+        return mStages.size();
+    }
+
+    private FilterChain stage(Stage stage, String token) {
+        List<Stage> stages = new ArrayList<Stage>(mStages);
+        stages.add(stage);
+        return new FilterChain(Collections.unmodifiableList(stages), spec(token));
+    }
+
+    // Appends op to the last stage, or starts an op-only stage if there is none.
+    private FilterChain op(PixelOp op, String token) {
+        List<Stage> stages = new ArrayList<Stage>(mStages);
+        Stage last = stages.isEmpty() ? new Stage(null, new PixelOp[0]) : stages.remove(stages.size() - 1);
+        stages.add(last.with(op));
+        return new FilterChain(Collections.unmodifiableList(stages), spec(token));
+    }
+
+    private String spec(String token) {
+        return mStages.isEmpty() ? token : mSpec + "+" + token;
+    }
+
+    /**
+     * The task that runs the chain from src into dst. Intermediate arrays are
+     * taken from bufferPool, if not null. A threshold of 0 lets SplitPolicy
+     * choose one for each stage. Every task checks cancellation before it
+     * splits or filters.
+     */
+    ForkJoinTask<?> task(int[] src, int[] dst, int width, int height, int threshold, PixelBufferPool bufferPool,
+                         Cancellation cancellation) {
+        return new ChainTask(mStages, src, dst, width, height, threshold, bufferPool, cancellation);
+    }
+
+    /**
+     * Applies ops to the pixels of src in columns [x0, x1) of rows [y0, y1)
+     * and writes them to dst, which may be src. input holds the pixels from
+     * before the stage's neighbourhood filter.
+     */
+    static void apply(PixelOp[] ops, int[] input, int[] src, int[] dst, int width,
+                      int x0, int x1, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            for (int index = y * width + x0, end = y * width + x1; index < end; index++) {
+                int pixel = src[index];
+                for (PixelOp op : ops) {
+                    pixel = op.apply(input[index], pixel);
+                }
+                dst[index] = pixel;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.min(Math.max(value, 0), 255);
+    }
+
+    @Override
+    public String toString() {
+        return mSpec;
+    }
+
+    private static final class Stage {
+        // The neighbourhood filter, or null for a stage of ops only.
+        final BlurParams mParams;
+        final PixelOp[] mOps;
+
+        Stage(BlurParams params, PixelOp[] ops) {
+            mParams = params;
+            mOps = ops;
+        }
+
+        Stage with(PixelOp op) {
+            int count = mOps.length;
+            if (count > 0 && mOps[count - 1] instanceof Lut && op instanceof Lut) {
+                PixelOp[] ops = mOps.clone();
+                ops[count - 1] = ((Lut) mOps[count - 1]).then((Lut) op);
+                return new Stage(mParams, ops);
+            }
+            PixelOp[] ops = Arrays.copyOf(mOps, count + 1);
+            ops[count] = op;
+            return new Stage(mParams, ops);
+        }
+
+        ForkJoinTask<?> task(int[] in, int[] out, int width, int height, int threshold, PixelBufferPool bufferPool,
+                             Cancellation cancellation) {
+            PixelOp[] ops = mOps.length > 0 ? mOps : null;
+            if (mParams == null) {
+                return new PointwiseTask(mOps, in, out, width, 0, height, threshold, cancellation);
+            }
+            return BlurEngine.task(in, out, width, height, mParams, threshold, bufferPool, ops, cancellation);
+        }
+    }
+
+    private static class ChainTask extends RecursiveAction {
+        private final List<Stage> mStages;
+        private final int[] mSource;
+        private final int[] mDestination;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mThreshold;
+        private final PixelBufferPool mBufferPool;
+        private final Cancellation mCancellation;
+
+        ChainTask(List<Stage> stages, int[] src, int[] dst, int width, int height, int threshold,
+                  PixelBufferPool bufferPool, Cancellation cancellation) {
+            mStages = stages;
+            mSource = src;
+            mDestination = dst;
+            mWidth = width;
+            mHeight = height;
+            mThreshold = threshold;
+            mBufferPool = bufferPool;
+            mCancellation = cancellation;
+        }
+
+        @Override
+        protected void compute() {
+            int pixels = mWidth * mHeight;
+            if (mStages.isEmpty()) {
+                System.arraycopy(mSource, 0, mDestination, 0, pixels);
+                return;
+            }
+            // Stages alternate between two intermediate arrays; the last one writes the destination.
+            int[][] buffers = new int[2][];
+            int[] in = mSource;
+            for (int i = 0; i < mStages.size(); i++) {
+                int[] out = mDestination;
+                if (i < mStages.size() - 1) {
+                    if (buffers[i % 2] == null) {
+                        buffers[i % 2] = mBufferPool != null ? mBufferPool.acquire(pixels) : new int[pixels];
+                    }
+                    out = buffers[i % 2];
+                }
+                mCancellation.check();
+                invokeAll(mStages.get(i).task(in, out, mWidth, mHeight, mThreshold, mBufferPool, mCancellation));
+                in = out;
+            }
+            if (mBufferPool != null) {
+                mBufferPool.release(buffers[0]);
+                mBufferPool.release(buffers[1]);
+            }
+        }
+    }
+
+    // Applies a stage of ops only, split by rows.
+    private static class PointwiseTask extends RecursiveAction {
+        private final PixelOp[] mOps;
+        private final int[] mSource;
+        private final int[] mDestination;
+        private final int mWidth;
+        private final int mY0;
+        private final int mY1;
+        private int mThreshold;
+        private final Cancellation mCancellation;
+
+        PointwiseTask(PixelOp[] ops, int[] src, int[] dst, int width, int y0, int y1, int threshold,
+                      Cancellation cancellation) {
+            mOps = ops;
+            mSource = src;
+            mDestination = dst;
+            mWidth = width;
+            mY0 = y0;
+            mY1 = y1;
+            mThreshold = threshold;
+            mCancellation = cancellation;
+        }
+
+        @Override
+        protected void compute() {
+            mCancellation.check();
+            if (mThreshold == 0) {
+                mThreshold = SplitPolicy.threshold((long) mWidth * (mY1 - mY0), 1, SplitPolicy.currentParallelism());
+            }
+            if ((long) mWidth * (mY1 - mY0) <= mThreshold || mY1 - mY0 == 1) {
+                apply(mOps, mSource, mSource, mDestination, mWidth, 0, mWidth, mY0, mY1);
+                return;
+            }
+            int split = mY0 + (mY1 - mY0) / 2;
+            invokeAll(new PointwiseTask(mOps, mSource, mDestination, mWidth, mY0, split, mThreshold, mCancellation),
+                    new PointwiseTask(mOps, mSource, mDestination, mWidth, split, mY1, mThreshold, mCancellation));
+        }
+    }
+
+    // The same 256-entry table applied to each channel.
+    private static final class Lut implements PixelOp {
+        private final int[] mTable;
+
+        Lut(int[] table) {
+            mTable = table;
+        }
+
+        Lut then(Lut next) {
+            int[] table = new int[256];
+            for (int v = 0; v < 256; v++) {
+                table[v] = next.mTable[mTable[v]];
+            }
+            return new Lut(table);
+        }
+
+        @Override
+        public int apply(int input, int pixel) {
+            return 0xff000000 | (mTable[(pixel >> 16) & 0xff] << 16) | (mTable[(pixel >> 8) & 0xff] << 8)
+                    | mTable[pixel & 0xff];
+        }
+    }
+
+    // Rec. 601 luma in 8-bit fixed point; the weights add up to 256.
+    private static final class Grayscale implements PixelOp {
+        @Override
+        public int apply(int input, int pixel) {
+            int y = (77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff) + 128) >> 8;
+            return 0xff000000 | (y << 16) | (y << 8) | y;
+        }
+    }
+
+    // input + amount * (input - blurred) per channel, amount in 8-bit fixed point.
+    private static final class Unsharp implements PixelOp {
+        private final int mAmount;
+
+        Unsharp(double amount) {
+            mAmount = (int) Math.round(amount * 256);
+        }
+
+        @Override
+        public int apply(int input, int pixel) {
+            return 0xff000000 | (sharpen(input >> 16, pixel >> 16) << 16) | (sharpen(input >> 8, pixel >> 8) << 8)
+                    | sharpen(input, pixel);
+        }
+
+        private int sharpen(int input, int blurred) {
+            int v = input & 0xff;
+            return clamp(v + (((v - (blurred & 0xff)) * mAmount + 128) >> 8));
+        }
+    }
+}
@@ -32,19 +32,21 @@
 import java.awt.image.BufferedImage;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
 import javax.imageio.ImageIO;
 
 /**
  * ForkBlur implements a simple horizontal image blur. It averages pixels in the
- * source array and writes them to a destination array. The sThreshold value
+ * source array and writes them to a destination array. The threshold value
  * determines whether the blurring will be performed directly or split into two
- * tasks.
+ * tasks; unless one is given, SplitPolicy picks it when the task starts.
  *
  * This is not the recommended way to blur images; it is only intended to
  * illustrate the use of the Fork/Join framework.
+ *
+ * BlurEngine runs flattened BlurParams through task(), one ForkBlur over the
+ * whole pixel array per pass.
  */
 public class ForkBlur extends RecursiveAction {
 
@@ -52,59 +54,114 @@ public class ForkBlur extends RecursiveAction {
     private int mStart;
     private int mLength;
     private int[] mDestination;
-    private int mBlurWidth = 15; // Processing window size, should be odd. todo: why this should be odd?
+    private int mBlurWidth; // Processing window size, odd so the window is centred on the pixel.
+    private int mThreshold;
+    // Pixels in the image; the arrays may be longer when they come from a PixelBufferPool.
+    private int mSize;
+    // FilterChain ops for the last pass, and the pixels they see as input.
+    private PixelOp[] mOps;
+    private int[] mInput;
+    private Cancellation mCancellation = Cancellation.NONE;
 
     public ForkBlur(int[] src, int start, int length, int[] dst) {
+        this(src, start, length, dst, 0);
+    }
+
+    public ForkBlur(int[] src, int start, int length, int[] dst, int threshold) {
+        this(src, start, length, dst, threshold, BlurParams.DEFAULT.getWidth(0));
+    }
+
+    // A threshold of 0 lets SplitPolicy choose one for the pool the task runs in.
+    public ForkBlur(int[] src, int start, int length, int[] dst, int threshold, int blurWidth) {
         mSource = src;
         mStart = start;
         mLength = length;
         mDestination = dst;
+        mThreshold = threshold;
+        mBlurWidth = blurWidth;
+        mSize = src.length;
     }
 
     // Average pixels from source, write results into destination.
+    // Uses running per-channel sums, so the cost does not grow with mBlurWidth.
     protected void computeDirectly() {
-        int sidePixels = (mBlurWidth - 1) / 2;
-        for (int index = mStart; index < mStart + mLength; index++) {
-            // Calculate average.
-            float rt = 0, gt = 0, bt = 0;
-            for (int mi = -sidePixels; mi <= sidePixels; mi++) {
-                int mindex = Math.min(Math.max(mi + index, 0), mSource.length - 1);
-                int pixel = mSource[mindex];
-                rt += (float) ((pixel & 0x00ff0000) >> 16) / mBlurWidth;
-                gt += (float) ((pixel & 0x0000ff00) >> 8) / mBlurWidth;
-                bt += (float) ((pixel & 0x000000ff) >> 0) / mBlurWidth;
-            }
-
-            // Re-assemble destination pixel.
-            int dpixel = (0xff000000) | (((int) rt) << 16) | (((int) gt) << 8) | (((int) bt) << 0);
-            mDestination[index] = dpixel;
+        BoxKernel.blurLine(mSource, mDestination, 0, 1, mSize,
+                mStart, mStart + mLength, mBlurWidth);
+        if (mOps != null) {
+            // The flattened image is one row of mSize pixels.
+            FilterChain.apply(mOps, mInput, mDestination, mDestination, mSize, mStart, mStart + mLength, 0, 1);
         }
     }
-    protected static int sThreshold = 10000;
 
     @Override
     protected void compute() {
-        if (mLength < sThreshold) {
+        mCancellation.check();
+        if (mThreshold == 0) {
+            mThreshold = SplitPolicy.threshold(mLength, mBlurWidth, SplitPolicy.currentParallelism());
+        }
+        // Every part primes its running sums, so parts stay SplitPolicy.minExtent long.
+        if (mLength < mThreshold || mLength / 2 < SplitPolicy.minExtent(mBlurWidth)) {
             computeDirectly();
             return;
         }
         int split = mLength / 2;
-        invokeAll(new ForkBlur(mSource, mStart, split, mDestination),
-                new ForkBlur(mSource, mStart + split, mLength - split, mDestination));
+        invokeAll(part(mStart, split), part(mStart + split, mLength - split));
+    }
+
+    // A task for part of this range in the same pass.
+    private ForkBlur part(int start, int length) {
+        ForkBlur part = new ForkBlur(mSource, start, length, mDestination, mThreshold, mBlurWidth);
+        part.mSize = mSize;
+        part.mOps = mOps;
+        part.mInput = mInput;
+        part.mCancellation = mCancellation;
+        return part;
+    }
+
+    /**
+     * The task that runs the passes of flattened params over width x height
+     * pixels of src into dst. The intermediate array of several passes is
+     * taken from bufferPool, if not null; ops, if not null, are applied to the
+     * blurred pixels, with src as their input.
+     */
+    static ForkJoinTask<?> task(final int[] src, final int[] dst, int width, int height, final BlurParams params,
+                                final int threshold, final PixelBufferPool bufferPool, final PixelOp[] ops,
+                                final Cancellation cancellation) {
+        if (!params.isFlattened()) {
+            throw new IllegalArgumentException("Not a flattened blur, use BlurEngine.task: " + params);
+        }
+        final int size = width * height;
+        return new RecursiveAction() {
+            @Override
+            protected void compute() {
+                int passes = params.getPasses();
+                int[] tmp = null;
+                if (passes > 1) {
+                    tmp = bufferPool != null ? bufferPool.acquire(size) : new int[size];
+                }
+                // Alternate between dst and tmp so that the last pass writes dst.
+                int[] in = src;
+                for (int pass = 0; pass < passes; pass++) {
+                    int[] out = (passes - 1 - pass) % 2 == 0 ? dst : tmp;
+                    ForkBlur blur = new ForkBlur(in, 0, size, out, threshold, params.getWidth(pass));
+                    blur.mSize = size;
+                    blur.mCancellation = cancellation;
+                    if (pass == passes - 1) {
+                        blur.mOps = ops;
+                        blur.mInput = src;
+                    }
+                    invokeAll(blur);
+                    in = out;
+                }
+                if (bufferPool != null && tmp != null) {
+                    bufferPool.release(tmp);
+                }
+            }
+        };
     }
 
     // Plumbing follows.
     public static void main(String[] args) throws Exception {
-        ArrayList<Integer> sThresholdList = new ArrayList<Integer>();
-        sThresholdList.add((int)Math.pow(10, 1));
-        sThresholdList.add((int)Math.pow(10, 2));
-        sThresholdList.add((int)Math.pow(10, 3));
-        sThresholdList.add((int)Math.pow(10, 4));
-        sThresholdList.add((int)Math.pow(10, 5));
-        sThresholdList.add((int)Math.pow(10, 6));
-        sThresholdList.add((int)Math.pow(10, 7));
-        sThresholdList.add((int)Math.pow(10, 8));
-
         System.out.println("==============================================================");
         System.out.println("# Task 2.1: Hardware configuration.");
         String osName= System.getProperty("os.name");
@@ -122,44 +179,48 @@ public class ForkBlur extends RecursiveAction {
         BufferedImage image = ImageIO.read(srcFile);
         System.out.println("Source image: " + srcName);
 
-//        int imagePixelLength = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()).length;
-//        imagePixelLength++;
-//        sThresholdList.add(imagePixelLength);
-
-        for (int i = 0; i < sThresholdList.size(); i++) {
-            sThreshold = sThresholdList.get(i);
-            System.out.println("## Task 2.2: Blur image for threshold: " + sThreshold);
-            BufferedImage blurredImage = blur(image);
-            String dstName = srcName.replace(".jpg", "") ;
-            String[] dstNameArr = dstName.split("\\\\");
-            dstName = dstNameArr[dstNameArr.length-1] + "-blur-thr-" + sThreshold + ".jpg";
-            String dstFilePath = dstDir + "\\" + dstName;
-            File dstFile = new File(dstFilePath);
-            ImageIO.write(blurredImage, "jpg", dstFile);
-            System.out.println("Output image: " + dstName);
-        }
+        // Threshold sweeps are measured with warm-up and percentiles by BlurBenchmark.
+        System.out.println("## Task 2.2: Blur image with an adaptive threshold.");
+        int w = image.getWidth();
+        int h = image.getHeight();
+        System.out.println("#Task1.1 ImageHolder width: " + w);
+        System.out.println("#Task1.2 ImageHolder height: " + h);
+        System.out.println("#Task1.3 Number of pixels: " + w * h);
+        int threshold = SplitPolicy.threshold((long) w * h, BlurParams.DEFAULT.getMaxWidth(),
+                BlurEngine.getDefault().getPool().getParallelism());
+        System.out.println("#Task1.4 Threshold for splitting the computation: " + threshold);
+        System.out.println("#Task1.5 Number of available processors: " + Runtime.getRuntime().availableProcessors());
+        long startTime = System.currentTimeMillis();
+        BufferedImage blurredImage = blur(image);
+        long endTime = System.currentTimeMillis();
+        System.out.println("#Task1.6 Computation time of blurring one image: " + (endTime - startTime)/1000.0 + "s");
+        String dstName = srcName.replace(".jpg", "") ;
+        String[] dstNameArr = dstName.split("\\\\");
+        dstName = dstNameArr[dstNameArr.length-1] + "-blur.jpg";
+        String dstFilePath = dstDir + "\\" + dstName;
+        File dstFile = new File(dstFilePath);
+        ImageIO.write(blurredImage, "jpg", dstFile);
+        System.out.println("Output image: " + dstName);
+        BlurEngine.getDefault().close();
     }
 
     public static BufferedImage blur(BufferedImage srcImage) {
+        return blur(srcImage, BlurParams.DEFAULT);
+    }
+
+    // Each pass of params is one flattened 1D pass here, fed the previous pass's output.
+    public static BufferedImage blur(BufferedImage srcImage, BlurParams params) {
+        if (params.isContrast()) {
+            throw new IllegalArgumentException("ForkBlur only blurs: " + params);
+        }
         int w = srcImage.getWidth();
         int h = srcImage.getHeight();
-        System.out.println("#Task1.1 ImageHolder width: " + w);
-        System.out.println("#Task1.2 ImageHolder height: " + h);
-        int[] src = srcImage.getRGB(0, 0, w, h, null, 0, w);
-        System.out.println("#Task1.3 Number of pixels: " + src.length);
+        int[] src = RasterAccess.readPixels(srcImage);
         int[] dst = new int[src.length];
-        int processors = Runtime.getRuntime().availableProcessors();
-        System.out.println("#Task1.4 Threshold for splitting the computation: " + sThreshold);
-        System.out.println("#Task1.5 Number of available processors: " + processors);
-        ForkBlur fb = new ForkBlur(src, 0, src.length, dst);
-        ForkJoinPool pool = new ForkJoinPool();
-        long startTime = System.currentTimeMillis();
-        pool.invoke(fb);
-        long endTime = System.currentTimeMillis();
-        System.out.println("#Task1.6 Computation time of blurring one image: " + (endTime - startTime)/1000.0 + "s");
-        BufferedImage dstImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        dstImage.setRGB(0, 0, w, h, dst, 0, w);
-        return dstImage;
+        // A threshold of 0 lets SplitPolicy choose one, as main() reports.
+        BlurEngine.getDefault().invoke(task(src, dst, w, h, params.exact().flattened(), 0, null, null,
+                Cancellation.NONE));
+        return RasterAccess.wrapRgb(dst, w, h);
     }
 }
 
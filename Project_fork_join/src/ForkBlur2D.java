@@ -0,0 +1,180 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ForkBlur2D implements a separable two-dimensional box blur. Unlike ForkBlur,
+ * which splits the flattened pixel array by length and lets the window run
+ * across row boundaries, it works on the image as rows and columns: a
+ * horizontal pass writes into an intermediate array, then a vertical pass
+ * writes the destination. BlurParams with several passes (the Gaussian
+ * approximation) repeat that, reading the previous pass's destination.
+ *
+ * Each pass is split into rectangular tiles until a tile holds at most
+ * threshold pixels, never cutting a tile shorter than SplitPolicy.minExtent
+ * along the direction of its pass, so the working set of a leaf task stays in the core's
+ * cache. Unless one is given, SplitPolicy picks the threshold for each blur
+ * from the image size, blur width and pool parallelism. A tile reads its halo
+ * (the sidePixels columns or rows around it) straight from the shared source
+ * of the pass, so tiles never wait on each other within a pass.
+ *
+ * A FilterChain may pass per-pixel ops, which each tile of the last
+ * vertical pass applies to its own rows as soon as it has written them.
+ * A BlurService may pass a Cancellation, which every task checks before it
+ * splits or blurs.
+ */
+public class ForkBlur2D extends RecursiveAction {
+
+    private static final int BOTH = 0;
+    private static final int HORIZONTAL = 1;
+    private static final int VERTICAL = 2;
+
+    private int[] mSource;
+    private int[] mDestination;
+    private int mWidth;
+    private int mHeight;
+    private int mX0, mY0, mX1, mY1;
+    private int mBlurWidth;
+    private int mPass;
+    private int mThreshold;
+    private BlurParams mParams;
+    private PixelBufferPool mBufferPool;
+    // FilterChain ops for the last vertical pass, and the pixels they see as input.
+    private PixelOp[] mOps;
+    private int[] mInput;
+    private Cancellation mCancellation = Cancellation.NONE;
+
+    public ForkBlur2D(int[] src, int[] dst, int width, int height, BlurParams params) {
+        this(src, dst, width, height, params, 0, null);
+    }
+
+    /**
+     * A threshold of 0 lets SplitPolicy choose one for the pool the task runs
+     * in. The intermediate array of the passes is taken from bufferPool, if
+     * not null.
+     */
+    public ForkBlur2D(int[] src, int[] dst, int width, int height, BlurParams params,
+                      int threshold, PixelBufferPool bufferPool) {
+        this(src, dst, width, height, params, threshold, bufferPool, null, Cancellation.NONE);
+    }
+
+    // ops, if not null, are applied to the blurred pixels, with src as their input.
+    ForkBlur2D(int[] src, int[] dst, int width, int height, BlurParams params,
+               int threshold, PixelBufferPool bufferPool, PixelOp[] ops, Cancellation cancellation) {
+        this(src, dst, width, height, 0, 0, width, height, params.getMaxWidth(), BOTH, threshold);
+        if (params.isContrast()) {
+            throw new IllegalArgumentException("Not a blur, use BlurEngine.task: " + params);
+        }
+        mParams = params;
+        mBufferPool = bufferPool;
+        mOps = ops;
+        mCancellation = cancellation;
+    }
+
+    private ForkBlur2D(int[] src, int[] dst, int width, int height,
+                       int x0, int y0, int x1, int y1, int blurWidth, int pass, int threshold) {
+        mSource = src;
+        mDestination = dst;
+        mWidth = width;
+        mHeight = height;
+        mX0 = x0;
+        mY0 = y0;
+        mX1 = x1;
+        mY1 = y1;
+        mBlurWidth = blurWidth;
+        mPass = pass;
+        mThreshold = threshold;
+    }
+
+    // Blur one tile of the current pass, with the packed kernel when it was selected.
+    protected void computeDirectly() {
+        boolean swar = SwarKernel.usable(mBlurWidth);
+        if (mPass == HORIZONTAL) {
+            for (int y = mY0; y < mY1; y++) {
+                if (swar) {
+                    SwarKernel.blurLine(mSource, mDestination, y * mWidth, 1, mWidth, mX0, mX1, mBlurWidth);
+                } else {
+                    BoxKernel.blurLine(mSource, mDestination, y * mWidth, 1, mWidth, mX0, mX1, mBlurWidth);
+                }
+            }
+        } else if (swar) {
+            SwarKernel.blurColumns(mSource, mDestination, mWidth, mHeight, mX0, mX1, mY0, mY1, mBlurWidth);
+        } else {
+            BoxKernel.blurColumns(mSource, mDestination, mWidth, mHeight, mX0, mX1, mY0, mY1, mBlurWidth);
+        }
+        if (mOps != null) {
+            FilterChain.apply(mOps, mInput, mDestination, mDestination, mWidth, mX0, mX1, mY0, mY1);
+        }
+    }
+
+    @Override
+    protected void compute() {
+        mCancellation.check();
+        if (mPass == BOTH) {
+            if (mThreshold == 0) {
+                mThreshold = SplitPolicy.threshold((long) mWidth * mHeight, mBlurWidth,
+                        SplitPolicy.currentParallelism());
+            }
+            // The vertical pass needs halo rows from neighbouring tiles, so the
+            // horizontal pass must be complete before it starts.
+            int[] tmp = mBufferPool != null ? mBufferPool.acquire(mWidth * mHeight) : new int[mWidth * mHeight];
+            for (int pass = 0; pass < mParams.getPasses(); pass++) {
+                int[] in = pass == 0 ? mSource : mDestination;
+                int blurWidth = mParams.getWidth(pass);
+                ForkBlur2D horizontal = new ForkBlur2D(in, tmp, mWidth, mHeight, 0, 0, mWidth, mHeight,
+                        blurWidth, HORIZONTAL, mThreshold);
+                horizontal.mCancellation = mCancellation;
+                invokeAll(horizontal);
+                ForkBlur2D vertical = new ForkBlur2D(tmp, mDestination, mWidth, mHeight, 0, 0, mWidth, mHeight,
+                        blurWidth, VERTICAL, mThreshold);
+                vertical.mCancellation = mCancellation;
+                if (pass == mParams.getPasses() - 1) {
+                    vertical.mOps = mOps;
+                    vertical.mInput = mSource;
+                }
+                invokeAll(vertical);
+            }
+            if (mBufferPool != null) {
+                mBufferPool.release(tmp);
+            }
+            return;
+        }
+        int tileWidth = mX1 - mX0;
+        int tileHeight = mY1 - mY0;
+        if ((long) tileWidth * tileHeight <= mThreshold || (tileWidth == 1 && tileHeight == 1)) {
+            computeDirectly();
+            return;
+        }
+        // Halve the longer side so tiles stay close to square, but not the
+        // side along the pass below SplitPolicy.minExtent.
+        boolean splitX = tileWidth >= tileHeight;
+        if (mPass == HORIZONTAL && tileWidth / 2 < SplitPolicy.minExtent(mBlurWidth)) {
+            splitX = false;
+        } else if (mPass == VERTICAL && tileHeight / 2 < SplitPolicy.minExtent(mBlurWidth)) {
+            splitX = true;
+        }
+        if ((splitX ? tileWidth : tileHeight) < 2) {
+            computeDirectly();
+            return;
+        }
+        if (splitX) {
+            int split = mX0 + tileWidth / 2;
+            invokeAll(tile(mX0, mY0, split, mY1), tile(split, mY0, mX1, mY1));
+        } else {
+            int split = mY0 + tileHeight / 2;
+            invokeAll(tile(mX0, mY0, mX1, split), tile(mX0, split, mX1, mY1));
+        }
+    }
+
+    // A task for part of this tile in the same pass.
+    private ForkBlur2D tile(int x0, int y0, int x1, int y1) {
+        ForkBlur2D tile = new ForkBlur2D(mSource, mDestination, mWidth, mHeight, x0, y0, x1, y1, mBlurWidth, mPass, mThreshold);
+        tile.mOps = mOps;
+        tile.mInput = mInput;
+        tile.mCancellation = mCancellation;
+        return tile;
+    }
+
+    public static BufferedImage blur(BufferedImage srcImage) {
+        return BlurEngine.getDefault().blur(srcImage);
+    }
+}
@@ -29,80 +29,26 @@
 * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveAction;
 
 /**
- * ForkBlur implements a simple horizontal image blur. It averages pixels in the
- * source array and writes them to a destination array. The sThreshold value
- * determines whether the blurring will be performed directly or split into two
- * tasks.
+ * ForkBlurBatch1 blurs every image in data/images into data/blur-images,
+ * one at a time.
  *
- * This is not the recommended way to blur images; it is only intended to
- * illustrate the use of the Fork/Join framework.
+ * The images get ForkBlur's horizontal blur over the flattened pixel array,
+ * run on the shared BlurEngine's pool. -Dforkblur.blur picks another blur;
+ * a spec without the "flat:" prefix, such as "box:7", asks for the 2D blur.
+ *
+ * Read, decode, blur and encode times, image sizes and cache hits are
+ * recorded in a BlurMetrics and written to -Dforkblur.metrics at the end.
  */
-public class ForkBlurBatch1 extends RecursiveAction {
-
-    private int[] mSource;
-    private int mStart;
-    private int mLength;
-    private int[] mDestination;
-    private int mBlurWidth = 15; // Processing window size, should be odd. todo: why this should be odd?
-
-    public ForkBlurBatch1(int[] src, int start, int length, int[] dst) {
-        mSource = src;
-        mStart = start;
-        mLength = length;
-        mDestination = dst;
-    }
-
-    // Average pixels from source, write results into destination.
-    protected void computeDirectly() {
-        int sidePixels = (mBlurWidth - 1) / 2;
-        for (int index = mStart; index < mStart + mLength; index++) {
-            // Calculate average.
-            float rt = 0, gt = 0, bt = 0;
-            for (int mi = -sidePixels; mi <= sidePixels; mi++) {
-                int mindex = Math.min(Math.max(mi + index, 0), mSource.length - 1);
-                int pixel = mSource[mindex];
-                rt += (float) ((pixel & 0x00ff0000) >> 16) / mBlurWidth;
-                gt += (float) ((pixel & 0x0000ff00) >> 8) / mBlurWidth;
-                bt += (float) ((pixel & 0x000000ff) >> 0) / mBlurWidth;
-            }
-
-            // Re-assemble destination pixel.
-            int dpixel = (0xff000000) | (((int) rt) << 16) | (((int) gt) << 8) | (((int) bt) << 0);
-            mDestination[index] = dpixel;
-        }
-    }
-    protected void computeDirectly2() {
-        int sidePixels = (mBlurWidth - 1) / 2;
-        for (int i = mStart; i < mStart + mLength; i++) {
-            int pixelDiffSum = 0;
-            for(int j = mStart; j < mStart + mLength; j++){
-                if (i != j){
-                    pixelDiffSum += Math.abs(mSource[i] - mDestination[j]);
-                }
-            }
-            mDestination[i] = pixelDiffSum / (mLength - 1);
-        }
-    }
-    protected static int sThreshold = 10000;
+public class ForkBlurBatch1 {
 
-    @Override
-    protected void compute() {
-        if (mLength < sThreshold) {
-            computeDirectly();
-            return;
-        }
-        int split = mLength / 2;
-        invokeAll(new ForkBlurBatch1(mSource, mStart, split, mDestination),
-                new ForkBlurBatch1(mSource, mStart + split, mLength - split, mDestination));
-    }
+    // The blur the batch classes have always applied.
+    private static final BlurParams FLATTENED = BlurParams.DEFAULT.flattened();
 
     // Plumbing follows.
     public static void main(String[] args) throws Exception {
@@ -122,51 +68,74 @@ public class ForkBlurBatch1 extends RecursiveAction {
         File[] listOfFiles = imageFilesDir.listFiles();
 //        String srcName = "..\\data\\images\\image_1.jpg";
         String dstDir = "..\\data\\blur-images";
+        BlurParams params = BlurParams.parse(System.getProperty("forkblur.blur", FLATTENED.toString()));
+        System.out.println("Blur: " + params);
+        BlurCache cache = BlurCache.fromProperties();
+        BlurMetrics metrics = new BlurMetrics();
+        String metricsFile = System.getProperty("forkblur.metrics", dstDir + "\\metrics.json");
+        metrics.pool("blur", BlurEngine.getDefault().getPool());
 
         for(File srcFile: listOfFiles){
             String srcName = srcFile.getName();
-            BufferedImage image = ImageIO.read(srcFile);
-            System.out.println("Source image: " + srcName);
-
-            System.out.println("## Task 2.2: Blur image for threshold: " + sThreshold);
-            BufferedImage blurredImage = blur(image);
             String dstName = srcName.replace(".jpg", "") ;
             String[] dstNameArr = dstName.split("\\\\");
             dstName = dstNameArr[dstNameArr.length-1] + "-blur.jpg";
             String dstFilePath = dstDir + "\\" + dstName;
             File dstFile = new File(dstFilePath);
-            ImageIO.write(blurredImage, "jpg", dstFile);
-            System.out.println("Output image: " + dstName);
+            String cacheKey = cache != null ? cache.key(srcFile, params, "jpg") : null;
+            if (cache != null && cache.restore(cacheKey, dstFile)) {
+                metrics.counter("cache_hits").increment();
+                continue;
+            }
+
+            long stageStart = System.nanoTime();
+            ByteBuffer bytes = IoExecutor.read(srcFile);
+            metrics.histogram("read").recordSince(stageStart);
+            metrics.counter("bytes_read").add(bytes.remaining());
+            stageStart = System.nanoTime();
+            BufferedImage image = ImageCodecs.decode(bytes);
+            if (image == null) {
+                metrics.counter("decode_errors").increment();
+                System.out.println("# Not an image file: " + srcName);
+                continue;
+            }
+            metrics.histogram("decode").recordSince(stageStart);
 
+            stageStart = System.nanoTime();
+            BufferedImage blurredImage = blur(image, params);
+            metrics.histogram("blur").recordSince(stageStart);
+            metrics.counter("pixels_blurred").add((long) image.getWidth() * image.getHeight());
+            metrics.counter("images_blurred").increment();
+            stageStart = System.nanoTime();
+            long written = ImageCodecs.write(blurredImage, "jpg", dstFile);
+            metrics.histogram("encode").recordSince(stageStart);
+            metrics.counter("bytes_written").add(Math.max(written, 0));
+            BlurEngine.getDefault().recycle(blurredImage);
+            if (cache != null) {
+                cache.store(cacheKey, dstFile);
+            }
+        }
+        if (cache != null) {
+            cache.save();
         }
+        metrics.dump(new File(metricsFile));
+        BlurEngine.getDefault().close();
         long endTime = System.currentTimeMillis();
         System.out.println("=======================================================");
         System.out.println("# Performance:");
         System.out.println("Blured: " + listOfFiles.length + " images.");
-        System.out.println("Time taken: " + ((endTime - startTime)/1000) + "s");
+        System.out.println("Time taken: " + ((endTime - startTime)/1000.0) + "s");
+        System.out.println("Metrics: " + metricsFile);
+        System.out.println("Cache: " + cache);
         System.out.println("=======================================================");
     }
 
     public static BufferedImage blur(BufferedImage srcImage) {
-        int w = srcImage.getWidth();
-        int h = srcImage.getHeight();
-        System.out.println("#Task1.1 ImageHolder width: " + w);
-        System.out.println("#Task1.2 ImageHolder height: " + h);
-        int[] src = srcImage.getRGB(0, 0, w, h, null, 0, w);
-        System.out.println("#Task1.3 Number of pixels: " + src.length);
-        int[] dst = new int[src.length];
-        int processors = Runtime.getRuntime().availableProcessors();
-        System.out.println("#Task1.4 Threshold for splitting the computation: " + sThreshold);
-        System.out.println("#Task1.5 Number of available processors: " + processors);
-        ForkBlurBatch1 fb = new ForkBlurBatch1(src, 0, src.length, dst);
-        ForkJoinPool pool = new ForkJoinPool();
-        long startTime = System.currentTimeMillis();
-        pool.invoke(fb);
-        long endTime = System.currentTimeMillis();
-        System.out.println("#Task1.6 Computation time of blurring one image: " + (endTime - startTime)/1000.0 + "s");
-        BufferedImage dstImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        dstImage.setRGB(0, 0, w, h, dst, 0, w);
-        return dstImage;
+        return blur(srcImage, FLATTENED);
+    }
+
+    public static BufferedImage blur(BufferedImage srcImage, BlurParams params) {
+        return BlurEngine.getDefault().blur(srcImage, params);
     }
 }
 
@@ -0,0 +1,309 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ImageCodecs decodes and encodes images with ImageReaders and ImageWriters
+ * that are kept and reused, instead of ImageIO.read and ImageIO.write, which
+ * search the service registry and create a new codec for every call.
+ * Codecs are pooled rather than kept per thread, since with virtual threads
+ * every file has a thread of its own.
+ *
+ * JPEG output uses explicit write parameters: the quality from
+ * -Dforkblur.jpeg.quality (default 0.75, ImageIO's own default), and
+ * unless -Dforkblur.jpeg.progressive or -Dforkblur.jpeg.optimizeHuffman ask
+ * for them, no progressive scans and no optimized Huffman tables, which cost
+ * encode time for a few percent of size. settingsTag() names these settings
+ * for BlurCache keys, so outputs encoded differently are never mixed up.
+ *
+ * The "ppm" format writes binary PPM, raw RGB bytes with no compression, for
+ * outputs that are only an input to a later stage; decode() reads it back.
+ */
+final class ImageCodecs {
+
+    static final String RAW = "ppm";
+
+    private static final float JPEG_QUALITY = Float.parseFloat(System.getProperty("forkblur.jpeg.quality", "0.75"));
+    private static final boolean JPEG_PROGRESSIVE = Boolean.getBoolean("forkblur.jpeg.progressive");
+    private static final boolean JPEG_OPTIMIZE_HUFFMAN = Boolean.getBoolean("forkblur.jpeg.optimizeHuffman");
+
+    // Reader providers that matched before, tried ahead of the registry.
+    private static final CopyOnWriteArrayList<ImageReaderSpi> sKnownReaders = new CopyOnWriteArrayList<ImageReaderSpi>();
+    private static final ConcurrentHashMap<ImageReaderSpi, Queue<ImageReader>> sReaders =
+            new ConcurrentHashMap<ImageReaderSpi, Queue<ImageReader>>();
+    private static final ConcurrentHashMap<String, Queue<ImageWriter>> sWriters =
+            new ConcurrentHashMap<String, Queue<ImageWriter>>();
+    // Numbers the temporary files of concurrent writes.
+    private static final AtomicLong sTempFiles = new AtomicLong(System.nanoTime());
+
+    private ImageCodecs() {
+    }
+
+    // Decodes bytes, or returns null if no reader recognises them.
+    static BufferedImage decode(ByteBuffer bytes) throws IOException {
+        if (isPpm(bytes)) {
+            return decodePpm(bytes);
+        }
+        try (ImageInputStream in = new ByteBufferImageInputStream(bytes)) {
+            ImageReaderSpi provider = provider(in);
+            if (provider == null) {
+                return null;
+            }
+            ImageReader reader = borrow(sReaders, provider);
+            if (reader == null) {
+                reader = provider.createReaderInstance();
+            }
+            try {
+                reader.setInput(in, true, true);
+                return reader.read(0, reader.getDefaultReadParam());
+            } finally {
+                reader.setInput(null);
+                sReaders.get(provider).add(reader);
+            }
+        }
+    }
+
+    /**
+     * Returns the width times height of the image in file, read from its
+     * header without decoding it, or 0 if no reader recognises it.
+     */
+    static long pixels(File file) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            return in != null ? pixels(in) : 0;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // The same for an image already read into bytes.
+    static long pixels(ByteBuffer bytes) {
+        try (ImageInputStream in = new ByteBufferImageInputStream(bytes)) {
+            return pixels(in);
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static long pixels(ImageInputStream in) throws IOException {
+        // Binary PPM headers are short, and no ImageIO reader knows them.
+        byte[] head = new byte[256];
+        in.mark();
+        int length = 0;
+        int read;
+        while (length < head.length && (read = in.read(head, length, head.length - length)) > 0) {
+            length += read;
+        }
+        in.reset();
+        ByteBuffer headBuffer = ByteBuffer.wrap(head, 0, length);
+        if (isPpm(headBuffer)) {
+            headBuffer.position(2);
+            try {
+                return (long) ppmNumber(headBuffer) * ppmNumber(headBuffer);
+            } catch (BufferUnderflowException e) {
+                return 0;
+            }
+        }
+        ImageReaderSpi provider = provider(in);
+        if (provider == null) {
+            return 0;
+        }
+        ImageReader reader = borrow(sReaders, provider);
+        if (reader == null) {
+            reader = provider.createReaderInstance();
+        }
+        try {
+            reader.setInput(in, true, true);
+            return (long) reader.getWidth(0) * reader.getHeight(0);
+        } finally {
+            reader.setInput(null);
+            sReaders.get(provider).add(reader);
+        }
+    }
+
+    private static ImageReaderSpi provider(ImageInputStream in) throws IOException {
+        for (ImageReaderSpi provider : sKnownReaders) {
+            if (provider.canDecodeInput(in)) {
+                return provider;
+            }
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReaderSpi provider = readers.next().getOriginatingProvider();
+        sKnownReaders.addIfAbsent(provider);
+        return provider;
+    }
+
+    /**
+     * Encodes image as format and writes it to file. Returns the number of
+     * bytes written, or -1 if there is no writer for format.
+     *
+     * The bytes go to a temporary file that then replaces file, the way
+     * ImageIO.write replaced it, rather than into file itself: file may be a
+     * hard link to a BlurCache entry, which must not change.
+     */
+    static long write(BufferedImage image, String format, File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        if (format.equals(RAW)) {
+            int w = image.getWidth();
+            int h = image.getHeight();
+            bytes.write(("P6\n" + w + " " + h + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+            int[] pixels = RasterAccess.readPixels(image);
+            byte[] row = new byte[3 * w];
+            for (int y = 0, index = 0; y < h; y++) {
+                for (int x = 0, pos = 0; x < w; x++, index++) {
+                    int pixel = pixels[index];
+                    row[pos++] = (byte) (pixel >> 16);
+                    row[pos++] = (byte) (pixel >> 8);
+                    row[pos++] = (byte) pixel;
+                }
+                bytes.write(row, 0, row.length);
+            }
+        } else if (!encode(image, format, bytes)) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        Path target = file.getAbsoluteFile().toPath();
+        // Not Files.createTempFile, which would give the output owner-only permissions.
+        Path tmp = target.resolveSibling("." + target.getFileName() + "." + sTempFiles.incrementAndGet() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return buffer.capacity();
+    }
+
+    private static boolean encode(BufferedImage image, String format, ByteArrayOutputStream bytes)
+            throws IOException {
+        ImageWriter writer = borrow(sWriters, format);
+        if (writer == null) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+            if (!writers.hasNext()) {
+                return false;
+            }
+            writer = writers.next();
+        }
+        try (ImageOutputStream out = new MemoryCacheImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), writeParam(writer));
+        } finally {
+            writer.setOutput(null);
+            sWriters.get(format).add(writer);
+        }
+        return true;
+    }
+
+    private static ImageWriteParam writeParam(ImageWriter writer) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param instanceof JPEGImageWriteParam) {
+            JPEGImageWriteParam jpeg = (JPEGImageWriteParam) param;
+            jpeg.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            jpeg.setCompressionQuality(JPEG_QUALITY);
+            jpeg.setProgressiveMode(JPEG_PROGRESSIVE ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+            jpeg.setOptimizeHuffmanTables(JPEG_OPTIMIZE_HUFFMAN);
+        }
+        return param;
+    }
+
+    // The encoder settings that change the bytes written as format, e.g. "q0.75"; empty for raw PPM.
+    static String settingsTag(String format) {
+        if (!extension(format).equals("jpg")) {
+            return "";
+        }
+        return "q" + JPEG_QUALITY + (JPEG_PROGRESSIVE ? "p" : "") + (JPEG_OPTIMIZE_HUFFMAN ? "h" : "");
+    }
+
+    // Takes a pooled codec for key, creating the pool if needed; null if it is empty.
+    private static <K, T> T borrow(ConcurrentHashMap<K, Queue<T>> pools, K key) {
+        Queue<T> pool = pools.get(key);
+        if (pool == null) {
+            pools.putIfAbsent(key, new ConcurrentLinkedQueue<T>());
+            pool = pools.get(key);
+        }
+        return pool.poll();
+    }
+
+    // Output file extension for format.
+    static String extension(String format) {
+        return format.equals("jpeg") ? "jpg" : format;
+    }
+
+    private static boolean isPpm(ByteBuffer bytes) {
+        return bytes.remaining() >= 2 && bytes.get(bytes.position()) == 'P' && bytes.get(bytes.position() + 1) == '6';
+    }
+
+    // Binary PPM with a maximum value of 255, as written by write() and PpmStripWriter.
+    private static BufferedImage decodePpm(ByteBuffer bytes) throws IOException {
+        ByteBuffer in = bytes.duplicate();
+        in.position(in.position() + 2);
+        int w;
+        int h;
+        int max;
+        try {
+            w = ppmNumber(in);
+            h = ppmNumber(in);
+            max = ppmNumber(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated PPM header");
+        }
+        if (max != 255 || in.remaining() < 3L * w * h) {
+            throw new IOException("Unsupported or truncated PPM: " + w + "x" + h + ", max " + max);
+        }
+        int[] pixels = new int[w * h];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = ((in.get() & 0xff) << 16) | ((in.get() & 0xff) << 8) | (in.get() & 0xff);
+        }
+        return RasterAccess.wrapRgb(pixels, w, h);
+    }
+
+    // Skips whitespace and # comments, then reads a decimal number and the one byte after it.
+    private static int ppmNumber(ByteBuffer in) {
+        int c = in.get();
+        while (c == '#' || Character.isWhitespace(c)) {
+            if (c == '#') {
+                while (in.get() != '\n') {
+                    // Skip the comment line.
+                }
+            }
+            c = in.get();
+        }
+        int value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            c = in.get();
+        }
+        return value;
+    }
+}
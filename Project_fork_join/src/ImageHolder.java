@@ -0,0 +1,65 @@
+/*
+* Copyright (c) 2010, 2013, Oracle and/or its affiliates. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+*   - Redistributions of source code must retain the above copyright
+*     notice, this list of conditions and the following disclaimer.
+*
+*   - Redistributions in binary form must reproduce the above copyright
+*     notice, this list of conditions and the following disclaimer in the
+*     documentation and/or other materials provided with the distribution.
+*
+*   - Neither the name of Oracle or the names of its
+*     contributors may be used to endorse or promote products derived
+*     from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+* IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+* THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+* PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+* CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+* EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+* PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+* PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+* LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+* NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.awt.image.BufferedImage;
+
+class ImageHolder implements Comparable<ImageHolder>{
+    // Marks the end of a stream of images on a pipeline queue.
+    static final ImageHolder END_OF_STREAM = new ImageHolder(null, null);
+
+    private final BufferedImage image;
+    private final String filename;
+    private final Integer pixelArraySize;
+
+    ImageHolder(BufferedImage image, String filename) {
+        this.image = image;
+        this.filename = filename;
+        pixelArraySize = image == null ? 0 : this.image.getHeight() * this.image.getWidth();
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getPixelArraySize() {
+        return pixelArraySize;
+    }
+
+    // Largest first, so priority queues hand out the longest blurs first.
+    @Override
+    public int compareTo(ImageHolder o) {
+        return o.pixelArraySize.compareTo(pixelArraySize);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+* Copyright (c) 2010, 2013, Oracle and/or its affiliates. All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions
+* are met:
+*
+*   - Redistributions of source code must retain the above copyright
+*     notice, this list of conditions and the following disclaimer.
+*
+*   - Redistributions in binary form must reproduce the above copyright
+*     notice, this list of conditions and the following disclaimer in the
+*     documentation and/or other materials provided with the distribution.
+*
+*   - Neither the name of Oracle or the names of its
+*     contributors may be used to endorse or promote products derived
+*     from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+* IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+* THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+* PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+* CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+* EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+* PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+* PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+* LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+* NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ImageLoader implements Callable<Integer> {
+    private File srcFile;
+    private BlockingQueue<ImageHolder> imageHolderQueue;
+    private AtomicInteger remainingFiles;
+    private Semaphore decodeSlots;
+    private PixelBudget.Run budget;
+    private BlurMetrics metrics;
+
+    public ImageLoader(File srcFile, BlockingQueue<ImageHolder> imageHolderQueue, AtomicInteger remainingFiles,
+                       Semaphore decodeSlots, PixelBudget.Run budget, BlurMetrics metrics) {
+        this.srcFile = srcFile;
+        this.imageHolderQueue = imageHolderQueue;
+        this.remainingFiles = remainingFiles;
+        this.decodeSlots = decodeSlots;
+        this.budget = budget;
+        this.metrics = metrics;
+    }
+
+    // Read and decode one file; the loader of the last file ends the stream.
+    @Override
+    public Integer call() throws InterruptedException {
+        try {
+            String srcName = srcFile.getName();
+            // Charge the budget for the file's bytes and, from its header, the
+            // decoded pixels before the read and the decode allocate anything.
+            long charged = PixelBudget.BYTES_PER_PIXEL * ImageCodecs.pixels(srcFile) + srcFile.length();
+            long waitStart = System.nanoTime();
+            budget.acquire(charged);
+            metrics.histogram("budget_wait").recordSince(waitStart);
+
+            long startTime = System.nanoTime();
+            ByteBuffer bytes;
+            try {
+                bytes = IoExecutor.read(srcFile);
+            } catch (IOException ioe) {
+                budget.release(charged);
+                metrics.counter("decode_errors").increment();
+                ioe.printStackTrace();
+                return 0;
+            }
+            metrics.histogram("read").recordSince(startTime);
+            metrics.counter("bytes_read").add(bytes.remaining());
+
+            // Decoding is CPU and heap bound, so only a few files decode at once.
+            ImageHolder imageHolder = null;
+            waitStart = System.nanoTime();
+            decodeSlots.acquire();
+            metrics.histogram("decode_slot_wait").recordSince(waitStart);
+            try {
+                startTime = System.nanoTime();
+                BufferedImage image;
+                try {
+                    image = ImageCodecs.decode(bytes);
+                } catch (IOException ioe) {
+                    metrics.counter("decode_errors").increment();
+                    ioe.printStackTrace();
+                    return 0;
+                }
+                if (image == null) {
+                    metrics.counter("decode_errors").increment();
+                    System.out.println("# Not an image file: " + srcName);
+                    return 0;
+                }
+                metrics.histogram("decode").recordSince(startTime);
+                metrics.counter("images_decoded").increment();
+                imageHolder = new ImageHolder(image, srcName);
+            } finally {
+                decodeSlots.release();
+                if (imageHolder == null) {
+                    budget.release(charged);
+                }
+            }
+            // The file's bytes are dropped now; keep the charge for the decoded pixels.
+            long bytesNeeded = PixelBudget.bytesFor(imageHolder);
+            if (bytesNeeded <= charged) {
+                budget.release(charged - bytesNeeded);
+            } else {
+                // The header did not tell the size.
+                budget.release(charged);
+                budget.acquire(bytesNeeded);
+            }
+            waitStart = System.nanoTime();
+            imageHolderQueue.put(imageHolder);
+            metrics.histogram("decoded_queue_put_wait").recordSince(waitStart);
+            return 1;
+        } finally {
+            if (remainingFiles.decrementAndGet() == 0) {
+                imageHolderQueue.put(ImageHolder.END_OF_STREAM);
+            }
+        }
+    }
+}
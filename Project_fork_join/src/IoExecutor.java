@@ -0,0 +1,113 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IoExecutor runs file reads, decodes and encodes off the BlurEngine's
+ * fork/join workers, so blocking I/O never holds a compute thread. On a JVM
+ * with virtual threads (Java 21 and later) every task gets its own virtual
+ * thread and thousands of files can wait on slow storage at little cost;
+ * otherwise tasks run on a pool of maxConcurrency platform threads. Either
+ * way at most maxConcurrency tasks run at once.
+ *
+ * read() returns a file's bytes through a FileChannel, mapping the file
+ * when it is large; ImageCodecs decodes images from those bytes without
+ * copying them.
+ */
+public class IoExecutor implements AutoCloseable {
+
+    // Files at least this large are memory-mapped instead of read.
+    private static final long MAP_THRESHOLD = 4 * 1024 * 1024;
+
+    private final ExecutorService mExecutor;
+    private final Semaphore mLimiter;
+    private final boolean mVirtual;
+
+    public IoExecutor(String name, int maxConcurrency) {
+        ExecutorService virtual = Boolean.getBoolean("forkblur.io.platform") ? null : newVirtualExecutor();
+        mVirtual = virtual != null;
+        mExecutor = mVirtual ? virtual : newPlatformExecutor(name, maxConcurrency);
+        mLimiter = new Semaphore(maxConcurrency);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor(), looked up so this still runs on Java 8.
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformExecutor(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + mCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public boolean isVirtual() {
+        return mVirtual;
+    }
+
+    // Runs task once fewer than maxConcurrency tasks are running.
+    public <T> Future<T> submit(final Callable<T> task) {
+        return mExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                mLimiter.acquire();
+                try {
+                    return task.call();
+                } finally {
+                    mLimiter.release();
+                }
+            }
+        });
+    }
+
+    // Interrupts running tasks and drops queued ones.
+    @Override
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the contents of file, mapped read-only if it is large. A mapped
+     * buffer is released when it is garbage collected.
+     */
+    static ByteBuffer read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the buffer is full or the file ends early.
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
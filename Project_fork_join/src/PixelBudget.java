@@ -0,0 +1,128 @@
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PixelBudget bounds the bytes of pixel data a batch keeps in flight. A loader
+ * charges each image from its header dimensions and file length before
+ * reading it, and blocks while the budget is exhausted; the encoder gives the
+ * bytes back once the blurred image is written. The heap a batch needs is
+ * then set by the budget, not by the size of the directory.
+ *
+ * An image larger than the whole budget is admitted only when nothing else is
+ * in flight, so it runs alone instead of blocking forever.
+ *
+ * A batch charges through a Run, whose close() gives back whatever images
+ * dropped by an aborted batch still hold.
+ *
+ * Loaders run on virtual threads, so they wait on a lock Condition rather
+ * than in Object.wait(), which would pin their carrier threads and could
+ * leave none for the encoders that release the budget.
+ */
+class PixelBudget {
+
+    // Decoded raster plus the src and dst int[] copies made for the blur,
+    // each counted at 4 bytes per pixel.
+    static final int BYTES_PER_PIXEL = 4 * 3;
+
+    private final long mCapacity;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mReleased = mLock.newCondition();
+    // Guarded by mLock.
+    private long mInUse;
+
+    PixelBudget(long capacityBytes) {
+        mCapacity = capacityBytes;
+    }
+
+    static long bytesFor(ImageHolder imageHolder) {
+        return (long) imageHolder.getPixelArraySize() * BYTES_PER_PIXEL;
+    }
+
+    void acquire(long bytes) throws InterruptedException {
+        mLock.lock();
+        try {
+            while (mInUse > 0 && mInUse + bytes > mCapacity) {
+                mReleased.await();
+            }
+            mInUse += bytes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void release(long bytes) {
+        mLock.lock();
+        try {
+            mInUse -= bytes;
+            mReleased.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    long getInUse() {
+        mLock.lock();
+        try {
+            return mInUse;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    long getCapacity() {
+        return mCapacity;
+    }
+
+    Run startRun() {
+        return new Run();
+    }
+
+    // The charges of one batch. Once closed, it neither charges nor releases.
+    class Run implements AutoCloseable {
+        // Guarded by mLock.
+        private long mCharged;
+        private boolean mClosed;
+
+        void acquire(long bytes) throws InterruptedException {
+            mLock.lock();
+            try {
+                if (mClosed) {
+                    return;
+                }
+                PixelBudget.this.acquire(bytes);
+                // The run may have been closed while this waited.
+                if (mClosed) {
+                    PixelBudget.this.release(bytes);
+                } else {
+                    mCharged += bytes;
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        void release(long bytes) {
+            mLock.lock();
+            try {
+                if (!mClosed) {
+                    mCharged -= bytes;
+                    PixelBudget.this.release(bytes);
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            mLock.lock();
+            try {
+                mClosed = true;
+                PixelBudget.this.release(mCharged);
+                mCharged = 0;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * PixelBufferPool hands out int[] pixel buffers and takes them back once an
+ * image is done, so a batch of similarly sized images stops allocating
+ * image-sized arrays. Such arrays go straight to the old generation and are
+ * what triggers the GC pauses in the middle of a batch.
+ *
+ * Requests are rounded up to a size class (four significant bits, so at most
+ * 1/8 of a buffer is slack), and a buffer is reused only for its own class.
+ * Released buffers are kept until mMaxRetainedBytes is reached; beyond that
+ * the least recently released buffer is evicted and left to the GC.
+ */
+public class PixelBufferPool {
+
+    private static final int MIN_CLASS = 1024;
+
+    private final long mMaxRetainedBytes;
+    private final ArrayDeque<int[]> mFree = new ArrayDeque<int[]>(); // oldest release first
+    private long mRetainedBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    public PixelBufferPool(long maxRetainedBytes) {
+        mMaxRetainedBytes = maxRetainedBytes;
+    }
+
+    // Smallest size class holding length ints.
+    static int sizeClass(int length) {
+        if (length <= MIN_CLASS) {
+            return MIN_CLASS;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(length - 1) - 3;
+        int size = (((length - 1) >>> shift) + 1) << shift;
+        return size > 0 ? size : length;
+    }
+
+    /**
+     * Returns a buffer of at least length ints. Its contents are undefined and
+     * it is usually longer than asked for.
+     */
+    public int[] acquire(int length) {
+        int size = sizeClass(length);
+        synchronized (this) {
+            // Newest first: a recently used buffer is more likely still cached.
+            for (Iterator<int[]> it = mFree.descendingIterator(); it.hasNext(); ) {
+                int[] buffer = it.next();
+                if (buffer.length == size) {
+                    it.remove();
+                    mRetainedBytes -= bytes(buffer);
+                    mHits++;
+                    return buffer;
+                }
+            }
+            mMisses++;
+        }
+        return new int[size];
+    }
+
+    // Give a buffer back; the caller must not touch it afterwards.
+    public synchronized void release(int[] buffer) {
+        if (buffer == null || bytes(buffer) > mMaxRetainedBytes) {
+            return;
+        }
+        mFree.addLast(buffer);
+        mRetainedBytes += bytes(buffer);
+        while (mRetainedBytes > mMaxRetainedBytes) {
+            mRetainedBytes -= bytes(mFree.pollFirst());
+            mEvictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        mFree.clear();
+        mRetainedBytes = 0;
+    }
+
+    public synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PixelBufferPool[hits=" + mHits + ", misses=" + mMisses + ", evictions=" + mEvictions
+                + ", retained=" + mRetainedBytes + "/" + mMaxRetainedBytes + " bytes]";
+    }
+
+    private static long bytes(int[] buffer) {
+        return 4L * buffer.length;
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * PixelOp is a per-pixel step of a FilterChain. It sees one pixel at a time,
+ * so the chain can apply it to a tile right after the tile's neighbourhood
+ * filter wrote it, while the tile is still in cache.
+ */
+interface PixelOp {
+
+    /**
+     * Returns the new value of pixel. input is the same pixel before the
+     * stage's neighbourhood filter, for ops such as unsharp masking that
+     * combine the two.
+     */
+    int apply(int input, int pixel);
+}
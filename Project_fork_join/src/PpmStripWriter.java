@@ -0,0 +1,46 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * PpmStripWriter writes a binary (P6) PPM file: a short text header followed
+ * by three bytes per pixel, row by row, so rows can be written as soon as
+ * they are ready. Most image tools read PPM and can convert it further.
+ */
+class PpmStripWriter implements StripWriter {
+
+    private final OutputStream mOut;
+    private byte[] mRow = new byte[0];
+
+    PpmStripWriter(File file) throws IOException {
+        mOut = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    }
+
+    @Override
+    public void begin(int width, int height) throws IOException {
+        mOut.write(("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+        mRow = new byte[3 * width];
+    }
+
+    @Override
+    public void write(int[] pixels, int offset, int width, int rows) throws IOException {
+        for (int y = 0; y < rows; y++) {
+            int index = offset + y * width;
+            for (int x = 0, pos = 0; x < width; x++, index++) {
+                int pixel = pixels[index];
+                mRow[pos++] = (byte) (pixel >> 16);
+                mRow[pos++] = (byte) (pixel >> 8);
+                mRow[pos++] = (byte) pixel;
+            }
+            mOut.write(mRow, 0, 3 * width);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
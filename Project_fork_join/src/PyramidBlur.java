@@ -0,0 +1,434 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * PyramidBlur runs a large blur at a reduced resolution. A blur with a large
+ * radius removes the fine detail of an image, so blurring every full
+ * resolution pixel is mostly wasted work. Instead the source is reduced by
+ * 2^k in each direction, averaging each 2^k x 2^k block, the reduced image
+ * is blurred with params.reduced(2^k), and the result is scaled back up with
+ * bilinear interpolation. The blur then touches 4^k times fewer pixels.
+ *
+ * The level k is the highest whose expected mean error stays within
+ * params.getTolerance(). The error grows with the factor 2^k and shrinks
+ * with the blur's sigma; a single box pass, whose hard window edges the
+ * resampling rounds off, loses accuracy faster than a Gaussian. The reduced
+ * blur also keeps a sigma of at least MIN_REDUCED_SIGMA pixels, and the
+ * pyramid is only used where it is expected to be faster: reducing and
+ * scaling back up cost about as much as one full resolution pass, so a
+ * single box pass needs at least level 2 to gain anything. The model
+ * and its constants were fitted with this class's main(), which compares
+ * every level with the exact ForkBlur2D on a synthetic image and prints the
+ * mean and maximum error, the time and the level each tolerance selects. A
+ * blur too small for any reduction runs as a plain ForkBlur2D.
+ *
+ * Reducing and upsampling are split by rows into fork/join tasks like the
+ * blur itself. FilterChain ops are applied by the upsampling tasks, and
+ * every task checks the job's Cancellation before it splits or computes.
+ */
+public class PyramidBlur extends RecursiveAction {
+
+    // Mean error in 8-bit levels is about GAUSS_ERROR * factor / sigma^0.5 for three or more passes.
+    private static final double GAUSS_ERROR = 0.45;
+    // ... and about BOX_ERROR * factor / sigma^0.2 for fewer.
+    private static final double BOX_ERROR = 0.28;
+    // Below this sigma in reduced pixels the reduced widths get too coarse for the model.
+    private static final double MIN_REDUCED_SIGMA = 1.5;
+    // Reducing and scaling back up cost about this many full resolution blur passes.
+    private static final double RESAMPLING_PASSES = 0.75;
+    // A reduced image keeps at least this many pixels on its shorter side.
+    private static final int MIN_REDUCED_SIDE = 16;
+    private static final int MAX_LEVEL = 6;
+    private static final long LANE = (1L << 21) - 1;
+
+    private final int[] mSource;
+    private final int[] mDestination;
+    private final int mWidth;
+    private final int mHeight;
+    private final BlurParams mParams;
+    private final int mThreshold;
+    private final PixelBufferPool mBufferPool;
+    private final PixelOp[] mOps;
+    private final Cancellation mCancellation;
+    private final int mLevel;
+
+    public PyramidBlur(int[] src, int[] dst, int width, int height, BlurParams params) {
+        this(src, dst, width, height, params, 0, null, null, Cancellation.NONE);
+    }
+
+    /**
+     * A threshold of 0 lets SplitPolicy choose one for the pool the task runs
+     * in. The reduced images are taken from bufferPool, if not null. ops, if
+     * not null, are applied to the blurred pixels, with src as their input.
+     */
+    PyramidBlur(int[] src, int[] dst, int width, int height, BlurParams params,
+                int threshold, PixelBufferPool bufferPool, PixelOp[] ops, Cancellation cancellation) {
+        this(src, dst, width, height, params, threshold, bufferPool, ops, cancellation, level(params, width, height));
+    }
+
+    private PyramidBlur(int[] src, int[] dst, int width, int height, BlurParams params, int threshold,
+                        PixelBufferPool bufferPool, PixelOp[] ops, Cancellation cancellation, int level) {
+        mSource = src;
+        mDestination = dst;
+        mWidth = width;
+        mHeight = height;
+        mParams = params;
+        mThreshold = threshold;
+        mBufferPool = bufferPool;
+        mOps = ops;
+        mCancellation = cancellation;
+        mLevel = level;
+    }
+
+    // The level params run at on a width x height image; 0 is full resolution.
+    static int level(BlurParams params, int width, int height) {
+        if (params.isContrast() || params.getTolerance() <= 0) {
+            return 0;
+        }
+        int level = 0;
+        while (level < MAX_LEVEL && expectedError(params, 2 << level) <= params.getTolerance()
+                && params.getSigma() / (2 << level) >= MIN_REDUCED_SIGMA
+                && Math.min(width, height) / (2 << level) >= MIN_REDUCED_SIDE) {
+            level++;
+        }
+        // A single box pass is cheap enough that a low level costs more than it saves.
+        int passes = params.getPasses();
+        return RESAMPLING_PASSES + (double) passes / (1 << 2 * level) < passes ? level : 0;
+    }
+
+    // Expected mean error, in 8-bit levels, of running params reduced by factor.
+    static double expectedError(BlurParams params, int factor) {
+        double sigma = Math.max(params.getSigma(), 1);
+        return params.getPasses() >= 3 ? GAUSS_ERROR * factor / Math.sqrt(sigma)
+                : BOX_ERROR * factor / Math.pow(sigma, 0.2);
+    }
+
+    @Override
+    protected void compute() {
+        mCancellation.check();
+        if (mLevel == 0) {
+            invokeAll(new ForkBlur2D(mSource, mDestination, mWidth, mHeight, mParams.exact(), mThreshold,
+                    mBufferPool, mOps, mCancellation));
+            return;
+        }
+        int factor = 1 << mLevel;
+        int reducedWidth = (mWidth + factor - 1) >> mLevel;
+        int reducedHeight = (mHeight + factor - 1) >> mLevel;
+        int pixels = reducedWidth * reducedHeight;
+        int[] reduced = mBufferPool != null ? mBufferPool.acquire(pixels) : new int[pixels];
+        int[] blurred = mBufferPool != null ? mBufferPool.acquire(pixels) : new int[pixels];
+
+        invokeAll(new Reduce(mSource, reduced, mWidth, mHeight, mLevel, 0, reducedHeight, mThreshold, mCancellation));
+        invokeAll(new ForkBlur2D(reduced, blurred, reducedWidth, reducedHeight, mParams.reduced(factor), 0,
+                mBufferPool, null, mCancellation));
+        // Where each output column samples the reduced row: two columns and the weight of the second.
+        int[] left = new int[mWidth];
+        int[] right = new int[mWidth];
+        int[] weights = new int[mWidth];
+        for (int x = 0; x < mWidth; x++) {
+            int position = sample(x, mLevel);
+            left[x] = Math.min(Math.max(position >> 8, 0), reducedWidth - 1);
+            right[x] = Math.min(Math.max((position >> 8) + 1, 0), reducedWidth - 1);
+            weights[x] = position & 0xff;
+        }
+        invokeAll(new Expand(blurred, mDestination, reducedWidth, reducedHeight, mWidth, mLevel,
+                left, right, weights, 0, mHeight, mThreshold, mOps, mSource, mCancellation));
+
+        if (mBufferPool != null) {
+            mBufferPool.release(reduced);
+            mBufferPool.release(blurred);
+        }
+    }
+
+    /**
+     * The reduced coordinate of the centre of full resolution pixel x, in
+     * 8-bit fixed point: (x + 0.5) / 2^level - 0.5, exact for level <= 7.
+     */
+    private static int sample(int x, int level) {
+        return ((2 * x + 1 - (1 << level)) << 7) >> level;
+    }
+
+    private static int threshold(int threshold, long pixels) {
+        return threshold != 0 ? threshold : SplitPolicy.threshold(pixels, 1, SplitPolicy.currentParallelism());
+    }
+
+    // Averages 2^level x 2^level blocks of src into rows [y0, y1) of dst; edge blocks average what they hold.
+    private static class Reduce extends RecursiveAction {
+        private final int[] mSource;
+        private final int[] mDestination;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mLevel;
+        private final int mY0;
+        private final int mY1;
+        private final int mThreshold;
+        private final Cancellation mCancellation;
+
+        Reduce(int[] src, int[] dst, int width, int height, int level, int y0, int y1, int threshold,
+               Cancellation cancellation) {
+            mSource = src;
+            mDestination = dst;
+            mWidth = width;
+            mHeight = height;
+            mLevel = level;
+            mY0 = y0;
+            mY1 = y1;
+            mThreshold = threshold;
+            mCancellation = cancellation;
+        }
+
+        @Override
+        protected void compute() {
+            mCancellation.check();
+            int threshold = PyramidBlur.threshold(mThreshold, (long) mWidth * mHeight);
+            if (((long) (mY1 - mY0) * mWidth << mLevel) <= threshold || mY1 - mY0 == 1) {
+                computeDirectly();
+                return;
+            }
+            int split = mY0 + (mY1 - mY0) / 2;
+            invokeAll(new Reduce(mSource, mDestination, mWidth, mHeight, mLevel, mY0, split, threshold, mCancellation),
+                    new Reduce(mSource, mDestination, mWidth, mHeight, mLevel, split, mY1, threshold, mCancellation));
+        }
+
+        // A block holds at most 4^MAX_LEVEL pixels, so its channel sums fit SwarKernel's 21-bit lanes.
+        private void computeDirectly() {
+            int factor = 1 << mLevel;
+            int reducedWidth = (mWidth + factor - 1) >> mLevel;
+            long[] sums = new long[reducedWidth];
+            for (int y = mY0; y < mY1; y++) {
+                Arrays.fill(sums, 0);
+                int top = y << mLevel;
+                int bottom = Math.min(top + factor, mHeight);
+                for (int row = top * mWidth, end = bottom * mWidth; row < end; row += mWidth) {
+                    for (int x = 0, block = 0; x < mWidth; block++) {
+                        long sum = 0;
+                        for (int blockEnd = Math.min(x + factor, mWidth); x < blockEnd; x++) {
+                            sum += SwarKernel.spread(mSource[row + x]);
+                        }
+                        sums[block] += sum;
+                    }
+                }
+                for (int x = 0; x < reducedWidth; x++) {
+                    int count = (bottom - top) * (Math.min((x + 1) << mLevel, mWidth) - (x << mLevel));
+                    int half = count / 2;
+                    long sum = sums[x];
+                    mDestination[y * reducedWidth + x] = 0xff000000
+                            | ((int) ((sum >>> 42) & LANE) + half) / count << 16
+                            | ((int) ((sum >>> 21) & LANE) + half) / count << 8
+                            | ((int) (sum & LANE) + half) / count;
+                }
+            }
+        }
+    }
+
+    // Scales rows [y0, y1) of the output up from the reduced image with bilinear interpolation.
+    private static class Expand extends RecursiveAction {
+        private final int[] mSource;
+        private final int[] mDestination;
+        private final int mReducedWidth;
+        private final int mReducedHeight;
+        private final int mWidth;
+        private final int mLevel;
+        private final int[] mLeft;
+        private final int[] mRight;
+        private final int[] mWeights;
+        private final int mY0;
+        private final int mY1;
+        private final int mThreshold;
+        private final PixelOp[] mOps;
+        private final int[] mInput;
+        private final Cancellation mCancellation;
+
+        Expand(int[] src, int[] dst, int reducedWidth, int reducedHeight, int width, int level,
+               int[] left, int[] right, int[] weights, int y0, int y1, int threshold, PixelOp[] ops, int[] input,
+               Cancellation cancellation) {
+            mSource = src;
+            mDestination = dst;
+            mReducedWidth = reducedWidth;
+            mReducedHeight = reducedHeight;
+            mWidth = width;
+            mLevel = level;
+            mLeft = left;
+            mRight = right;
+            mWeights = weights;
+            mY0 = y0;
+            mY1 = y1;
+            mThreshold = threshold;
+            mOps = ops;
+            mInput = input;
+            mCancellation = cancellation;
+        }
+
+        @Override
+        protected void compute() {
+            mCancellation.check();
+            int threshold = PyramidBlur.threshold(mThreshold, (long) mWidth * (mY1 - mY0));
+            if ((long) (mY1 - mY0) * mWidth <= threshold || mY1 - mY0 == 1) {
+                computeDirectly();
+                return;
+            }
+            int split = mY0 + (mY1 - mY0) / 2;
+            invokeAll(new Expand(mSource, mDestination, mReducedWidth, mReducedHeight, mWidth, mLevel,
+                            mLeft, mRight, mWeights, mY0, split, threshold, mOps, mInput, mCancellation),
+                    new Expand(mSource, mDestination, mReducedWidth, mReducedHeight, mWidth, mLevel,
+                            mLeft, mRight, mWeights, split, mY1, threshold, mOps, mInput, mCancellation));
+        }
+
+        /**
+         * Each reduced row is first scaled to full width, in 21-bit lanes with
+         * 8 fractional bits, and kept while the output rows between it and
+         * the next reduced row are mixed from the two, so a reduced row is
+         * scaled once per task instead of once per output row.
+         */
+        private void computeDirectly() {
+            long[] upper = new long[mWidth];
+            long[] lower = new long[mWidth];
+            int upperRow = -1;
+            int lowerRow = -1;
+            for (int y = mY0; y < mY1; y++) {
+                int position = sample(y, mLevel);
+                int top = Math.min(Math.max(position >> 8, 0), mReducedHeight - 1);
+                int bottom = Math.min(Math.max((position >> 8) + 1, 0), mReducedHeight - 1);
+                int fy = position & 0xff;
+                if (top != upperRow) {
+                    if (top == lowerRow) {
+                        long[] swap = upper;
+                        upper = lower;
+                        lower = swap;
+                        lowerRow = upperRow;
+                    } else {
+                        scaleRow(top, upper);
+                    }
+                    upperRow = top;
+                }
+                if (bottom != lowerRow) {
+                    scaleRow(bottom, lower);
+                    lowerRow = bottom;
+                }
+                for (int x = 0, index = y * mWidth; x < mWidth; x++, index++) {
+                    long a = upper[x];
+                    long b = lower[x];
+                    int r = ((int) (a >>> 42) * (256 - fy) + (int) (b >>> 42) * fy + 32768) >> 16;
+                    int g = ((int) ((a >>> 21) & LANE) * (256 - fy) + (int) ((b >>> 21) & LANE) * fy + 32768) >> 16;
+                    int bl = ((int) (a & LANE) * (256 - fy) + (int) (b & LANE) * fy + 32768) >> 16;
+                    mDestination[index] = 0xff000000 | (r << 16) | (g << 8) | bl;
+                }
+            }
+            if (mOps != null) {
+                FilterChain.apply(mOps, mInput, mDestination, mDestination, mWidth, 0, mWidth, mY0, mY1);
+            }
+        }
+
+        private void scaleRow(int row, long[] scaled) {
+            int base = row * mReducedWidth;
+            for (int x = 0; x < mWidth; x++) {
+                int fx = mWeights[x];
+                scaled[x] = SwarKernel.spread(mSource[base + mLeft[x]]) * (256 - fx)
+                        + SwarKernel.spread(mSource[base + mRight[x]]) * fx;
+            }
+        }
+    }
+
+    /**
+     * Compares every level with the exact blur on a synthetic image of
+     * smooth gradients, hard-edged shapes and noise, for each blur given as
+     * an argument (default box:8 box:16 box:32 box:64 gauss:8 gauss:16
+     * gauss:32), and prints the mean and maximum error in 8-bit levels, the
+     * time, the expected error, and the level that tolerances of 0.5, 1 and 2
+     * select.
+     */
+    public static void main(String[] args) {
+        String[] specs = args.length > 0 ? args
+                : new String[]{"box:8", "box:16", "box:32", "box:64", "gauss:8", "gauss:16", "gauss:32"};
+        int w = 1920;
+        int h = 1080;
+        int[] src = syntheticImage(w, h, 42);
+        int[] exact = new int[w * h];
+        int[] approximate = new int[w * h];
+        try (BlurEngine engine = new BlurEngine()) {
+            System.out.println(String.format("%-10s %5s %9s %9s %9s %9s %12s", "blur", "level", "mean err",
+                    "max err", "ms", "expected", "selected by"));
+            for (String spec : specs) {
+                BlurParams params = BlurParams.parse(spec).exact();
+                long exactNanos = time(engine, new ForkBlur2D(src, exact, w, h, params, 0, engine.getBufferPool()));
+                System.out.println(String.format("%-10s %5d %9.3f %9d %9.2f", spec, 0, 0.0, 0, exactNanos / 1e6));
+                for (int level = 1; level <= MAX_LEVEL; level++) {
+                    if (Math.min(w, h) >> level < MIN_REDUCED_SIDE) {
+                        break;
+                    }
+                    long nanos = time(engine, new PyramidBlur(src, approximate, w, h, params, 0,
+                            engine.getBufferPool(), null, Cancellation.NONE, level));
+                    double[] error = error(exact, approximate, w * h);
+                    StringBuilder selected = new StringBuilder();
+                    for (double tolerance : new double[]{0.5, 1, 2}) {
+                        if (level(params.approximate(tolerance), w, h) == level) {
+                            selected.append(selected.length() > 0 ? "," : "~").append(tolerance);
+                        }
+                    }
+                    System.out.println(String.format("%-10s %5d %9.3f %9d %9.2f %9.3f %12s", spec, level, error[0],
+                            (int) error[1], nanos / 1e6, expectedError(params, 1 << level), selected));
+                }
+            }
+        }
+    }
+
+    // Best of a few runs, after one to warm up.
+    private static long time(BlurEngine engine, RecursiveAction task) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 6; i++) {
+            task.reinitialize();
+            long start = System.nanoTime();
+            engine.invoke(task);
+            if (i > 0) {
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        }
+        return best;
+    }
+
+    // Mean and maximum absolute difference per channel.
+    static double[] error(int[] expected, int[] actual, int pixels) {
+        long sum = 0;
+        int max = 0;
+        for (int i = 0; i < pixels; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int difference = Math.abs(((expected[i] >> shift) & 0xff) - ((actual[i] >> shift) & 0xff));
+                sum += difference;
+                max = Math.max(max, difference);
+            }
+        }
+        return new double[]{sum / (3.0 * pixels), max};
+    }
+
+    private static int[] syntheticImage(int w, int h, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                pixels[y * w + x] = 0xff000000 | (255 * x / w << 16) | (255 * y / h << 8) | 128;
+            }
+        }
+        for (int i = 0; i < 40; i++) {
+            int x0 = random.nextInt(w);
+            int y0 = random.nextInt(h);
+            int x1 = Math.min(w, x0 + 20 + random.nextInt(300));
+            int y1 = Math.min(h, y0 + 20 + random.nextInt(300));
+            int color = 0xff000000 | random.nextInt(0x1000000);
+            for (int y = y0; y < y1; y++) {
+                Arrays.fill(pixels, y * w + x0, y * w + x1, color);
+            }
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            int noise = random.nextInt(17) - 8;
+            int pixel = pixels[i];
+            pixels[i] = 0xff000000 | (clamp(((pixel >> 16) & 0xff) + noise) << 16)
+                    | (clamp(((pixel >> 8) & 0xff) + noise) << 8) | clamp((pixel & 0xff) + noise);
+        }
+        return pixels;
+    }
+
+    private static int clamp(int value) {
+        return Math.min(Math.max(value, 0), 255);
+    }
+}
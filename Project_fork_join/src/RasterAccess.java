@@ -0,0 +1,133 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * RasterAccess moves pixels between BufferedImages and the packed 0xRRGGBB
+ * int[] arrays the blur tasks work on, reading the raster's DataBuffer
+ * directly. getRGB/setRGB convert every pixel through the image's
+ * ColorModel, which for JPEG-decoded TYPE_3BYTE_BGR images costs about as
+ * much as the blur itself.
+ *
+ * Images whose layout has no fast path here fall back to getRGB.
+ */
+final class RasterAccess {
+
+    private static final int[] RGB_MASKS = {0x00ff0000, 0x0000ff00, 0x000000ff};
+
+    private RasterAccess() {
+    }
+
+    static int[] readPixels(BufferedImage image) {
+        return readPixels(image, null);
+    }
+
+    /**
+     * Returns the pixels of image as packed RGB ints, one per pixel, row by
+     * row. Like getRGB, the pixels are stored in pixels when it is non-null
+     * and long enough. For images where hasDirectPixels is true the result is
+     * instead the raster's own array, not a copy: callers must only read it.
+     */
+    static int[] readPixels(BufferedImage image, int[] pixels) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (pixels == null || pixels.length < w * h) {
+            pixels = null;
+        }
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel sampleModel = raster.getSampleModel();
+        int tx = -raster.getSampleModelTranslateX();
+        int ty = -raster.getSampleModelTranslateY();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                int[] data = ((DataBufferInt) buffer).getData();
+                int scanline = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+                int base = buffer.getOffset() + ty * scanline + tx;
+                if (base == 0 && scanline == w && data.length == w * h) {
+                    return data;
+                }
+                pixels = pixels != null ? pixels : new int[w * h];
+                for (int y = 0; y < h; y++) {
+                    System.arraycopy(data, base + y * scanline, pixels, y * w, w);
+                }
+                return pixels;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) buffer).getData();
+                ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+                int pixelStride = csm.getPixelStride();
+                int scanline = csm.getScanlineStride();
+                int[] bandOffsets = csm.getBandOffsets();
+                int rOff = bandOffsets[0], gOff = bandOffsets[1], bOff = bandOffsets[2];
+                pixels = pixels != null ? pixels : new int[w * h];
+                for (int y = 0, index = 0; y < h; y++) {
+                    int pos = buffer.getOffset() + (ty + y) * scanline + tx * pixelStride;
+                    for (int x = 0; x < w; x++, index++, pos += pixelStride) {
+                        pixels[index] = ((data[pos + rOff] & 0xff) << 16)
+                                | ((data[pos + gOff] & 0xff) << 8) | (data[pos + bOff] & 0xff);
+                    }
+                }
+                return pixels;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] data = ((DataBufferByte) buffer).getData();
+                ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+                int pixelStride = csm.getPixelStride();
+                int scanline = csm.getScanlineStride();
+                int bandOffset = csm.getBandOffsets()[0];
+                pixels = pixels != null ? pixels : new int[w * h];
+                for (int y = 0, index = 0; y < h; y++) {
+                    int pos = buffer.getOffset() + (ty + y) * scanline + tx * pixelStride + bandOffset;
+                    for (int x = 0; x < w; x++, index++, pos += pixelStride) {
+                        int gray = data[pos] & 0xff;
+                        pixels[index] = (gray << 16) | (gray << 8) | gray;
+                    }
+                }
+                return pixels;
+            }
+            default:
+                return image.getRGB(0, 0, w, h, pixels, 0, w);
+        }
+    }
+
+    // True when readPixels returns the raster's array rather than a copy.
+    static boolean hasDirectPixels(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+            return false;
+        }
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        int w = image.getWidth();
+        int scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        int base = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline - raster.getSampleModelTranslateX();
+        return base == 0 && scanline == w && ((DataBufferInt) buffer).getData().length == w * image.getHeight();
+    }
+
+    // The int[] behind an image made by wrapRgb.
+    static int[] wrappedPixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Wraps packed RGB pixels in a TYPE_INT_RGB image without copying them.
+     * The JPEG writer encodes this type directly, with no alpha to drop and no
+     * ColorModel conversion. The array may be longer than width * height.
+     */
+    static BufferedImage wrapRgb(int[] pixels, int width, int height) {
+        DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, RGB_MASKS, null);
+        DirectColorModel colorModel = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+}
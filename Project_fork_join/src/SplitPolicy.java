@@ -0,0 +1,245 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SplitPolicy picks the split threshold of a blur for each invocation, from
+ * the number of pixels, the blur width and the parallelism of the pool that
+ * runs it. It replaces a static threshold shared by every task and every
+ * concurrent blur, where tuning one workload silently retuned the others.
+ *
+ * The threshold aims at LEAVES_PER_WORKER leaf tasks per worker, so idle
+ * workers have something to steal, bounded below so that task overhead stays
+ * small, and above by a tile that fits in cache. Those bounds come from a
+ * host profile: running this class as a program (or setting
+ * -Dforkblur.calibrate=true) measures the host once and stores the profile,
+ * and later runs load it. Without a profile the defaults below are used.
+ *
+ * The profile also records whether SwarKernel matched BoxKernel and beat it
+ * by SwarKernel.MIN_SPEEDUP on this host, which SwarKernel's auto mode reads.
+ * Hosts without a profile, or with one written before it had the kernel, use
+ * BoxKernel.
+ *
+ * Priming the running sums costs about blurWidth per line of a tile,
+ * whatever the tile's area, so it is bounded by minExtent() along the blur
+ * axis instead.
+ */
+final class SplitPolicy {
+
+    private static final int LEAVES_PER_WORKER = 8;
+
+    // Keep fork/join bookkeeping under 1% of a leaf's work.
+    private static final int OVERHEAD_FACTOR = 100;
+
+    // Defaults for a host that has not been calibrated.
+    private static final double DEFAULT_NS_PER_PIXEL = 4.0;
+    private static final double DEFAULT_TASK_OVERHEAD_NS = 500.0;
+    private static final int DEFAULT_CACHE_TILE_PIXELS = 16 * 1024;
+
+    private static SplitPolicy sHost;
+
+    private final double mNsPerPixel;
+    private final double mTaskOverheadNs;
+    private final int mCacheTilePixels;
+    private final boolean mSwarKernel;
+
+    SplitPolicy(double nsPerPixel, double taskOverheadNs, int cacheTilePixels) {
+        this(nsPerPixel, taskOverheadNs, cacheTilePixels, false);
+    }
+
+    SplitPolicy(double nsPerPixel, double taskOverheadNs, int cacheTilePixels, boolean swarKernel) {
+        mNsPerPixel = nsPerPixel;
+        mTaskOverheadNs = taskOverheadNs;
+        mCacheTilePixels = cacheTilePixels;
+        mSwarKernel = swarKernel;
+    }
+
+    /**
+     * Returns the number of pixels at or below which a task of a blur over
+     * pixels pixels should compute directly instead of splitting.
+     */
+    static int threshold(long pixels, int blurWidth, int parallelism) {
+        return host().thresholdFor(pixels, blurWidth, parallelism);
+    }
+
+    // Parallelism of the pool running the current task, or of the common pool.
+    static int currentParallelism() {
+        ForkJoinPool pool = ForkJoinTask.getPool();
+        return pool != null ? pool.getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+    }
+
+    int thresholdFor(long pixels, int blurWidth, int parallelism) {
+        long perWorker = pixels / ((long) Math.max(parallelism, 1) * LEAVES_PER_WORKER);
+        long minLeaf = (long) (mTaskOverheadNs * OVERHEAD_FACTOR / mNsPerPixel);
+        long maxLeaf = Math.max(minLeaf, mCacheTilePixels);
+        long threshold = Math.min(Math.max(perWorker, minLeaf), maxLeaf);
+        return (int) Math.max(1, Math.min(threshold, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Returns the fewest pixels along its blur axis a tile may be split to.
+     * Each line of the tile then spends at most 1/8 of its time priming its
+     * running sum.
+     */
+    static int minExtent(int blurWidth) {
+        return 8 * blurWidth;
+    }
+
+    // Whether calibration found SwarKernel exact and faster than BoxKernel on this host.
+    boolean usesSwarKernel() {
+        return mSwarKernel;
+    }
+
+    static synchronized SplitPolicy host() {
+        if (sHost == null) {
+            File file = profileFile();
+            sHost = load(file);
+            if (sHost == null && Boolean.getBoolean("forkblur.calibrate")) {
+                sHost = calibrate();
+                sHost.save(file);
+            }
+            if (sHost == null) {
+                sHost = new SplitPolicy(DEFAULT_NS_PER_PIXEL, DEFAULT_TASK_OVERHEAD_NS, DEFAULT_CACHE_TILE_PIXELS);
+            }
+        }
+        return sHost;
+    }
+
+    static File profileFile() {
+        String path = System.getProperty("forkblur.profile");
+        if (path != null) {
+            return new File(path);
+        }
+        return new File(System.getProperty("user.home"), ".forkblur" + File.separator + "host-profile.properties");
+    }
+
+    static SplitPolicy load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            return new SplitPolicy(Double.parseDouble(properties.getProperty("nsPerPixel")),
+                    Double.parseDouble(properties.getProperty("taskOverheadNs")),
+                    Integer.parseInt(properties.getProperty("cacheTilePixels")),
+                    properties.getProperty("kernel", "scalar").equals("swar"));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("# Ignoring unreadable host profile " + file + ": " + e);
+            return null;
+        }
+    }
+
+    void save(File file) {
+        Properties properties = new Properties();
+        properties.setProperty("nsPerPixel", String.valueOf(mNsPerPixel));
+        properties.setProperty("taskOverheadNs", String.valueOf(mTaskOverheadNs));
+        properties.setProperty("cacheTilePixels", String.valueOf(mCacheTilePixels));
+        properties.setProperty("kernel", mSwarKernel ? "swar" : "scalar");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "ForkBlur host profile");
+        } catch (IOException ioe) {
+            System.out.println("# Could not save host profile " + file + ": " + ioe);
+        }
+    }
+
+    /**
+     * Measures the single-thread cost of the blur kernel per pixel, the cost
+     * of forking and joining an empty task, and the largest square tile whose
+     * blur is within 10% of the fastest tile size (a cache-size estimate),
+     * and whether SwarKernel should be used.
+     */
+    static SplitPolicy calibrate() {
+        int side = 1024;
+        int[] src = new int[side * side];
+        int[] tmp = new int[side * side];
+        int[] dst = new int[side * side];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = i * 0x9e3779b9;
+        }
+
+        // Kernel cost per pixel over a range of tile sizes; best of several runs each.
+        int[] tiles = {32, 64, 128, 256, 512, 1024};
+        double[] tileNsPerPixel = new double[tiles.length];
+        double bestNsPerPixel = Double.MAX_VALUE;
+        for (int t = 0; t < tiles.length; t++) {
+            int tile = tiles[t];
+            double nsPerPixel = Double.MAX_VALUE;
+            for (int run = 0; run < 10; run++) {
+                long start = System.nanoTime();
+                for (int y0 = 0; y0 < side; y0 += tile) {
+                    for (int x0 = 0; x0 < side; x0 += tile) {
+                        for (int y = y0; y < y0 + tile; y++) {
+                            BoxKernel.blurLine(src, tmp, y * side, 1, side, x0, x0 + tile, 15);
+                        }
+                        BoxKernel.blurColumns(tmp, dst, side, side, x0, x0 + tile, y0, y0 + tile, 15);
+                    }
+                }
+                nsPerPixel = Math.min(nsPerPixel, (System.nanoTime() - start) / (double) src.length);
+            }
+            tileNsPerPixel[t] = nsPerPixel;
+            bestNsPerPixel = Math.min(bestNsPerPixel, nsPerPixel);
+        }
+        int cacheTilePixels = DEFAULT_CACHE_TILE_PIXELS;
+        for (int t = 0; t < tiles.length; t++) {
+            if (tileNsPerPixel[t] <= bestNsPerPixel * 1.1) {
+                cacheTilePixels = tiles[t] * tiles[t];
+            }
+        }
+
+        // Fork/join overhead per task: a balanced tree of empty tasks.
+        ForkJoinPool pool = new ForkJoinPool();
+        double taskOverheadNs = Double.MAX_VALUE;
+        try {
+            for (int run = 0; run < 10; run++) {
+                long start = System.nanoTime();
+                pool.invoke(new EmptyTask(1 << 16));
+                taskOverheadNs = Math.min(taskOverheadNs, (System.nanoTime() - start) / (double) (1 << 17));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        // The packed kernel has to reproduce BoxKernel and then beat it after a warm-up.
+        boolean swarKernel = SwarKernel.matchesScalar(new Random(0x5eed), 28, 64)
+                && SwarKernel.measureSpeedup(200, 50) >= SwarKernel.MIN_SPEEDUP;
+        return new SplitPolicy(bestNsPerPixel, taskOverheadNs * pool.getParallelism(), cacheTilePixels, swarKernel);
+    }
+
+    @Override
+    public String toString() {
+        return "SplitPolicy[nsPerPixel=" + mNsPerPixel + ", taskOverheadNs=" + mTaskOverheadNs
+                + ", cacheTilePixels=" + mCacheTilePixels + ", kernel=" + (mSwarKernel ? "swar" : "scalar") + "]";
+    }
+
+    // Calibrate this host and store its profile.
+    public static void main(String[] args) {
+        File file = args.length > 0 ? new File(args[0]) : profileFile();
+        SplitPolicy policy = calibrate();
+        policy.save(file);
+        System.out.println("# Calibrated " + policy + ", saved to " + file);
+    }
+
+    private static class EmptyTask extends RecursiveAction {
+        private final int mLeaves;
+
+        EmptyTask(int leaves) {
+            mLeaves = leaves;
+        }
+
+        @Override
+        protected void compute() {
+            if (mLeaves > 1) {
+                invokeAll(new EmptyTask(mLeaves / 2), new EmptyTask(mLeaves - mLeaves / 2));
+            }
+        }
+    }
+}
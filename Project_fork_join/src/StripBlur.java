@@ -0,0 +1,120 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * StripBlur blurs images too large to hold in memory. Instead of decoding
+ * the whole image, it reads horizontal strips through ImageReader with a
+ * source region, blurs each strip with the BlurEngine, and writes the
+ * finished rows to a StripWriter before reading the next strip. Peak memory
+ * is one strip and its blur buffers, whatever the image size.
+ *
+ * Each strip is read with a halo of params.getReach() extra rows above and
+ * below it, which is as far as the passes together spread a pixel, so the
+ * rows kept from a strip are exactly the rows a whole-image blur would
+ * produce. The halo rows are decoded twice; with strips much taller than
+ * the reach that costs little.
+ *
+ * Readers that can seek to a row (TIFF, BMP) decode only the rows of
+ * each strip. The JDK's JPEG reader decodes every row above the region as
+ * well, so JPEG input keeps the memory bound but pays extra decode time.
+ * The JDK's JPEG writer needs the whole raster, so the output is written as
+ * binary PPM, which is written row by row.
+ */
+public class StripBlur {
+
+    // Strips of about this many pixels, 16 MB per int[] copy.
+    private static final int DEFAULT_STRIP_PIXELS = 4 * 1024 * 1024;
+
+    private final BlurEngine mEngine;
+    private final BlurParams mParams;
+    private final int mStripRows;
+
+    public StripBlur(BlurEngine engine, BlurParams params) {
+        this(engine, params, 0);
+    }
+
+    // A stripRows of 0 picks strips of about DEFAULT_STRIP_PIXELS pixels.
+    public StripBlur(BlurEngine engine, BlurParams params, int stripRows) {
+        if (params.isFlattened()) {
+            throw new IllegalArgumentException("Flattened blurs run on whole images: " + params);
+        }
+        mEngine = engine;
+        // Pyramid blocks would fall differently in each strip, so strips are blurred exactly.
+        mParams = params.isContrast() ? params : params.exact();
+        mStripRows = stripRows;
+    }
+
+    /**
+     * Blurs src into dst, a PPM file, and returns the number of pixels
+     * written.
+     */
+    public long blur(File src, File dst) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(src)) {
+            if (in == null) {
+                throw new IOException("Cannot open " + src);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + src);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                try (StripWriter writer = new PpmStripWriter(dst)) {
+                    return blur(reader, writer);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    long blur(ImageReader reader, StripWriter writer) throws IOException {
+        int w = reader.getWidth(0);
+        int h = reader.getHeight(0);
+        int halo = mParams.getReach();
+        int stripRows = mStripRows > 0 ? mStripRows : Math.max(1, DEFAULT_STRIP_PIXELS / w);
+        PixelBufferPool bufferPool = mEngine.getBufferPool();
+        writer.begin(w, h);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        for (int y0 = 0; y0 < h; y0 += stripRows) {
+            int y1 = Math.min(y0 + stripRows, h);
+            int top = Math.max(y0 - halo, 0);
+            int bottom = Math.min(y1 + halo, h);
+            param.setSourceRegion(new Rectangle(0, top, w, bottom - top));
+            BufferedImage strip = reader.read(0, param);
+
+            int[] buffer = RasterAccess.hasDirectPixels(strip) ? null : bufferPool.acquire(w * (bottom - top));
+            int[] pixels = RasterAccess.readPixels(strip, buffer);
+            int[] blurred = mEngine.blur(pixels, w, bottom - top, mParams);
+            bufferPool.release(buffer);
+            writer.write(blurred, (y0 - top) * w, w, y1 - y0);
+            bufferPool.release(blurred);
+        }
+        return (long) w * h;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: StripBlur <src> <dst.ppm> [box:7|gauss:<sigma>] [stripRows]");
+            return;
+        }
+        BlurParams params = args.length > 2 ? BlurParams.parse(args[2]) : BlurParams.DEFAULT;
+        int stripRows = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        long startTime = System.currentTimeMillis();
+        long pixels;
+        try (BlurEngine engine = new BlurEngine()) {
+            pixels = new StripBlur(engine, params, stripRows).blur(new File(args[0]), new File(args[1]));
+        }
+        long endTime = System.currentTimeMillis();
+        System.out.println("Blurred " + pixels + " pixels with " + params + " in " + (endTime - startTime) / 1000.0 + "s");
+    }
+}
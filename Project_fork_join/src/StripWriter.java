@@ -0,0 +1,15 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * StripWriter receives a blurred image a band of rows at a time, top to
+ * bottom, so that the whole image never has to be in memory at once.
+ */
+interface StripWriter extends Closeable {
+
+    // Called once, before the first strip.
+    void begin(int width, int height) throws IOException;
+
+    // Writes rows rows of width packed RGB pixels, starting at pixels[offset].
+    void write(int[] pixels, int offset, int width, int rows) throws IOException;
+}
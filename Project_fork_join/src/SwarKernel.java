@@ -0,0 +1,283 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * SwarKernel is a drop-in for the BoxKernel passes that processes the three
+ * channels of a pixel with one instruction ("SIMD within a register"). Each
+ * pixel is spread into a long with 21 bits per channel (red at bit 42, green
+ * at 21, blue at 0), so the running window sum of all channels is a single
+ * long: one add and one subtract per step instead of three of each. The
+ * per-channel division by the width becomes a multiply by a fixed-point
+ * reciprocal that is exact for every sum a window can reach.
+ *
+ * A 21-bit lane holds the sum of up to MAX_WIDTH pixels. Whether the kernel
+ * is used is decided once per JVM: -Dforkblur.kernel=scalar forces
+ * BoxKernel, swar forces this kernel, and the default (auto) follows the
+ * SplitPolicy host profile. Calibrating the host records whether this
+ * kernel reproduced BoxKernel bit for bit on random images and, after a
+ * warm-up, blurred a test image at least MIN_SPEEDUP times faster than
+ * BoxKernel. Packing only pays where 64-bit multiplies are cheap, so the
+ * kernel has to earn its place by measurement, once per host rather than in
+ * every JVM that blurs.
+ *
+ * Run this class as a program to compare it with BoxKernel on a fixed set
+ * of edge cases (widths up to MAX_WIDTH, lines shorter and longer than the
+ * window, saturated pixels that fill the lanes) and on random images from a
+ * fixed seed; it exits with status 1 on any difference, so the same check
+ * can run after every change to either kernel.
+ */
+final class SwarKernel {
+
+    static final int MAX_WIDTH = (1 << 21) / 255;
+
+    private static final long LANE = (1L << 21) - 1;
+    private static final int RECIPROCAL_SHIFT = 40;
+    // How much faster than BoxKernel calibration needs this kernel to be.
+    static final double MIN_SPEEDUP = 1.1;
+
+    private static final boolean sEnabled = select(System.getProperty("forkblur.kernel", "auto"));
+
+    private SwarKernel() {
+    }
+
+    // Whether callers should use this kernel for the given blur width.
+    static boolean usable(int blurWidth) {
+        return sEnabled && blurWidth <= MAX_WIDTH;
+    }
+
+    // The channels of pixel in 21-bit lanes: red at bit 42, green at 21, blue at 0.
+    static long spread(int pixel) {
+        return ((pixel & 0x00ff0000L) << 26) | ((pixel & 0x0000ff00L) << 13) | (pixel & 0x000000ffL);
+    }
+
+    // floor(2^40 / width) + 1: (sum * r) >>> 40 == sum / width while sum * width < 2^40.
+    private static long reciprocal(int blurWidth) {
+        return (1L << RECIPROCAL_SHIFT) / blurWidth + 1;
+    }
+
+    private static int average(long sums, long reciprocal) {
+        int r = (int) ((((sums >>> 42) & LANE) * reciprocal) >>> RECIPROCAL_SHIFT);
+        int g = (int) ((((sums >>> 21) & LANE) * reciprocal) >>> RECIPROCAL_SHIFT);
+        int b = (int) (((sums & LANE) * reciprocal) >>> RECIPROCAL_SHIFT);
+        return (0xff000000) | (r << 16) | (g << 8) | b;
+    }
+
+    // Same contract as BoxKernel.blurLine.
+    static void blurLine(int[] src, int[] dst, int base, int step, int count,
+                         int from, int to, int blurWidth) {
+        if (from >= to) {
+            return;
+        }
+        int sidePixels = (blurWidth - 1) / 2;
+        int last = count - 1;
+        long reciprocal = reciprocal(blurWidth);
+
+        long sums = 0;
+        for (int mi = from - sidePixels; mi <= from + sidePixels; mi++) {
+            sums += spread(src[base + Math.min(Math.max(mi, 0), last) * step]);
+        }
+        for (int index = from; ; index++) {
+            dst[base + index * step] = average(sums, reciprocal);
+            if (index + 1 >= to) {
+                return;
+            }
+            // Add before subtracting so no lane ever goes negative and borrows.
+            sums += spread(src[base + Math.min(index + sidePixels + 1, last) * step]);
+            sums -= spread(src[base + Math.max(index - sidePixels, 0) * step]);
+        }
+    }
+
+    // Same contract as BoxKernel.blurColumns.
+    static void blurColumns(int[] src, int[] dst, int width, int height,
+                            int x0, int x1, int y0, int y1, int blurWidth) {
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        int sidePixels = (blurWidth - 1) / 2;
+        int last = height - 1;
+        int cols = x1 - x0;
+        long reciprocal = reciprocal(blurWidth);
+        long[] sums = new long[cols];
+
+        for (int mi = y0 - sidePixels; mi <= y0 + sidePixels; mi++) {
+            int row = Math.min(Math.max(mi, 0), last) * width + x0;
+            for (int c = 0; c < cols; c++) {
+                sums[c] += spread(src[row + c]);
+            }
+        }
+        for (int y = y0; ; y++) {
+            int row = y * width + x0;
+            for (int c = 0; c < cols; c++) {
+                dst[row + c] = average(sums[c], reciprocal);
+            }
+            if (y + 1 >= y1) {
+                return;
+            }
+            int inRow = Math.min(y + sidePixels + 1, last) * width + x0;
+            int outRow = Math.max(y - sidePixels, 0) * width + x0;
+            for (int c = 0; c < cols; c++) {
+                sums[c] += spread(src[inRow + c]);
+                sums[c] -= spread(src[outRow + c]);
+            }
+        }
+    }
+
+    /**
+     * Blurs random images with both kernels, horizontally and vertically and
+     * over partial ranges, and returns whether every output pixel matched.
+     */
+    static boolean matchesScalar(Random random, int trials, int maxSide) {
+        int[] widths = {1, 2, 3, 15, 31, 101, MAX_WIDTH};
+        for (int trial = 0; trial < trials; trial++) {
+            int w = 1 + random.nextInt(maxSide);
+            int h = 1 + random.nextInt(maxSide);
+            int blurWidth = widths[trial % widths.length];
+            int[] src = new int[w * h];
+            for (int i = 0; i < src.length; i++) {
+                // Mix in saturated pixels so lane sums reach their maximum.
+                src[i] = random.nextInt(4) == 0 ? 0xffffffff : random.nextInt();
+            }
+            int from = random.nextInt(w);
+            int to = from + random.nextInt(w - from + 1);
+            if (!matches(src, w, h, from, to, random.nextInt(h), blurWidth)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares both kernels on the cases the lanes and the clamped edges
+     * depend on: every width from 1 to MAX_WIDTH in the list below, lines
+     * shorter than, as long as and longer than the window in both
+     * directions, all over and on the interior range only, with pixels that
+     * are all saturated (the largest lane sums) or alternate between black
+     * and white. Returns the first failing case, or null if all matched.
+     */
+    static String matchesScalarAtEdges() {
+        int[] widths = {1, 2, 3, 15, 101, MAX_WIDTH - 1, MAX_WIDTH};
+        int[] patterns = {0xffffffff, 0};
+        for (int blurWidth : widths) {
+            int side = (blurWidth - 1) / 2;
+            int[] lengths = {1, 2, side, side + 1, blurWidth, blurWidth + 1, 2 * blurWidth + 3};
+            for (int length : lengths) {
+                for (int across = 1; across <= 3; across++) {
+                    for (int pattern : patterns) {
+                        for (int vertical = 0; vertical < 2; vertical++) {
+                            int w = vertical == 0 ? Math.max(length, 1) : across;
+                            int h = vertical == 0 ? across : Math.max(length, 1);
+                            int[] src = new int[w * h];
+                            for (int i = 0; i < src.length; i++) {
+                                src[i] = pattern != 0 || i % 2 == 0 ? 0xffffffff : 0xff000000;
+                            }
+                            int from = Math.min(side, w);
+                            int to = Math.max(from, w - side);
+                            // Only the pass along the length; the other is covered with the roles swapped.
+                            boolean ok = vertical == 0
+                                    ? matchesLines(src, w, h, 0, w, blurWidth)
+                                            && matchesLines(src, w, h, from, to, blurWidth)
+                                    : matchesColumns(src, w, h, 0, w, 0, blurWidth)
+                                            && matchesColumns(src, w, h, 0, w, Math.min(side, h - 1), blurWidth);
+                            if (!ok) {
+                                return "width " + blurWidth + ", " + w + "x" + h
+                                        + (pattern != 0 ? " saturated" : " alternating");
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    // Both passes of both kernels over columns [from, to), the column pass from row y0 down.
+    private static boolean matches(int[] src, int w, int h, int from, int to, int y0, int blurWidth) {
+        return matchesLines(src, w, h, from, to, blurWidth) && matchesColumns(src, w, h, from, to, y0, blurWidth);
+    }
+
+    private static boolean matchesLines(int[] src, int w, int h, int from, int to, int blurWidth) {
+        int[] expected = new int[w * h];
+        int[] actual = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            BoxKernel.blurLine(src, expected, y * w, 1, w, from, to, blurWidth);
+            blurLine(src, actual, y * w, 1, w, from, to, blurWidth);
+        }
+        return Arrays.equals(expected, actual);
+    }
+
+    private static boolean matchesColumns(int[] src, int w, int h, int from, int to, int y0, int blurWidth) {
+        int[] expected = new int[w * h];
+        int[] actual = new int[w * h];
+        BoxKernel.blurColumns(src, expected, w, h, from, to, y0, h, blurWidth);
+        blurColumns(src, actual, w, h, from, to, y0, h, blurWidth);
+        return Arrays.equals(expected, actual);
+    }
+
+    /**
+     * How many times faster this kernel blurs a test image than BoxKernel:
+     * the best of rounds alternating rounds of each, after warmup rounds
+     * that give the JIT time to compile both kernels.
+     */
+    static double measureSpeedup(int warmup, int rounds) {
+        int w = 256;
+        int h = 128;
+        int blurWidth = 15;
+        Random random = new Random(0x5eed);
+        int[] src = new int[w * h];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = random.nextInt();
+        }
+        int[] tmp = new int[w * h];
+        int[] dst = new int[w * h];
+        long scalar = Long.MAX_VALUE;
+        long swar = Long.MAX_VALUE;
+        for (int round = -warmup; round < rounds; round++) {
+            if (round == 0) {
+                scalar = Long.MAX_VALUE;
+                swar = Long.MAX_VALUE;
+            }
+            long start = System.nanoTime();
+            for (int y = 0; y < h; y++) {
+                BoxKernel.blurLine(src, tmp, y * w, 1, w, 0, w, blurWidth);
+            }
+            BoxKernel.blurColumns(tmp, dst, w, h, 0, w, 0, h, blurWidth);
+            scalar = Math.min(scalar, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int y = 0; y < h; y++) {
+                blurLine(src, tmp, y * w, 1, w, 0, w, blurWidth);
+            }
+            blurColumns(tmp, dst, w, h, 0, w, 0, h, blurWidth);
+            swar = Math.min(swar, System.nanoTime() - start);
+        }
+        return (double) scalar / Math.max(swar, 1);
+    }
+
+    private static boolean select(String mode) {
+        if (mode.equals("scalar")) {
+            return false;
+        }
+        if (mode.equals("swar")) {
+            return true;
+        }
+        return SplitPolicy.host().usesSwarKernel();
+    }
+
+    /**
+     * Compares this kernel with BoxKernel on the edge cases and on random
+     * images, from the seed given as the first argument (default 42), and
+     * prints the measured speedup.
+     */
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+        String edge = matchesScalarAtEdges();
+        boolean ok = edge == null && matchesScalar(new Random(seed), 200, 1024);
+        System.out.println("# SwarKernel " + (ok ? "matches" : "DOES NOT match") + " BoxKernel (seed " + seed
+                + (edge != null ? ", " + edge : "") + ")");
+        double speedup = measureSpeedup(200, 50);
+        System.out.println(String.format("# SwarKernel is %.2fx as fast as BoxKernel; calibration would %s it.",
+                speedup, ok && speedup >= MIN_SPEEDUP ? "use" : "not use"));
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+}